@@ -18,7 +18,12 @@
  */
 package osgi.jpms.internal.layer;
 
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
+import java.util.Hashtable;
+
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
@@ -29,10 +34,15 @@ import org.osgi.framework.hooks.weaving.WovenClassListener;
 import org.osgi.util.tracker.ServiceTracker;
 
 import osgi.jpms.layer.LayerFactory;
+import osgi.jpms.layer.LayerMetrics;
 
 public class Activator implements BundleActivator {
 	private static String LOG_SERVICE = "org.osgi.service.log.LogService";
+	private static String METRICS_MBEAN = "osgi.jpms.layer:type=LayerMetrics";
 	private ServiceRegistration<?> factoryReg;
+	private ServiceRegistration<?> metricsReg;
+	private ServiceRegistration<?> commandsReg;
+	private ObjectName metricsName;
 	private LayerFactoryImpl factory;
 	private ServiceTracker<Object, Object> logService;
 	private volatile boolean logErrors = false;
@@ -50,21 +60,62 @@ public class Activator implements BundleActivator {
 		factory = new LayerFactoryImpl(this, context, systemModule);
 		// The factory is a bundle listener to keep track of resolved bundles
 		context.addBundleListener(factory);
+		// and a framework listener to clean up and rebuild layers after a refresh
+		context.addFrameworkListener(factory);
 		// The factory is also a WovenClassListener to intercept bundle class loaders before
 		// they define any classes.  This is to ensure they are part of a layer before the
 		// first class is defined.
 		String[] serviceClasses = new String[] {LayerFactory.class.getName(), WovenClassListener.class.getName(), WeavingHook.class.getName()};
 		factoryReg = context.registerService(serviceClasses, factory, null);
+		metricsReg = context.registerService(LayerMetrics.class, factory.getMetrics(), null);
+		registerMetricsMBean(factory.getMetrics());
+		Hashtable<String, Object> commandProps = new Hashtable<>();
+		commandProps.put("osgi.command.scope", LayerCommands.SCOPE);
+		commandProps.put("osgi.command.function", LayerCommands.FUNCTIONS);
+		commandsReg = context.registerService(LayerCommands.class, new LayerCommands(context, factory), commandProps);
+	}
+
+	private void registerMetricsMBean(LayerMetricsImpl metrics) {
+		// the platform MBean server is optional
+		if (!ModuleLayer.boot().findModule("java.management").isPresent()) {
+			return;
+		}
+		try {
+			ObjectName name = new ObjectName(METRICS_MBEAN);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(metrics, LayerMetricsMXBean.class, true), name);
+			metricsName = name;
+		} catch (Exception | LinkageError e) {
+			logError("Could not register the layer metrics MBean.", e);
+		}
+	}
+
+	private void unregisterMetricsMBean() {
+		if (metricsName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+			} catch (Exception e) {
+				logError("Could not unregister the layer metrics MBean.", e);
+			}
+			metricsName = null;
+		}
 	}
 
 	@Override
 	public void stop(BundleContext context) throws Exception {
+		if (commandsReg != null) {
+			commandsReg.unregister();
+		}
+		unregisterMetricsMBean();
+		if (metricsReg != null) {
+			metricsReg.unregister();
+		}
 		if (factoryReg != null) {
 			factoryReg.unregister();
 			context.removeBundleListener(factory);
+			context.removeFrameworkListener(factory);
 		}
 
-		factory.savePrivatesCache(context);
+		factory.shutdown();
 		logService.close();
 	}
 
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.osgi.framework.wiring.BundleWiring;
+
+import osgi.jpms.layer.LayerMetrics.BundleCost;
+import osgi.jpms.layer.LayerMetrics.Cost;
+
+/**
+ * Attributes the cost of creating bundle modules to the bundle wirings.
+ * Costs are only added while the layers write lock is held but can be
+ * reported at any time.
+ */
+class BundleCosts {
+	static class WiringCost implements BundleCost {
+		final long bundleId;
+		final String symbolicName;
+		final AtomicLongArray nanos;
+		volatile String fallback;
+
+		WiringCost(BundleWiring wiring) {
+			this(wiring.getBundle().getBundleId(), wiring.getRevision().getSymbolicName(), new AtomicLongArray(Cost.values().length), null);
+		}
+
+		WiringCost(long bundleId, String symbolicName, AtomicLongArray nanos, String fallback) {
+			this.bundleId = bundleId;
+			this.symbolicName = symbolicName;
+			this.nanos = nanos;
+			this.fallback = fallback;
+		}
+
+		WiringCost copy() {
+			AtomicLongArray copy = new AtomicLongArray(nanos.length());
+			for (int i = 0; i < nanos.length(); i++) {
+				copy.set(i, nanos.get(i));
+			}
+			return new WiringCost(bundleId, symbolicName, copy, fallback);
+		}
+
+		@Override
+		public long getBundleId() {
+			return bundleId;
+		}
+
+		@Override
+		public String getSymbolicName() {
+			return symbolicName;
+		}
+
+		@Override
+		public long getTime(Cost cost, TimeUnit unit) {
+			return unit.convert(nanos.get(cost.ordinal()), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public long getTotal(TimeUnit unit) {
+			long total = 0;
+			for (int i = 0; i < nanos.length(); i++) {
+				total += nanos.get(i);
+			}
+			return unit.convert(total, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public String getFallback() {
+			return fallback;
+		}
+	}
+
+	private final Map<BundleWiring, WiringCost> costs = new ConcurrentHashMap<>();
+
+	/**
+	 * Adds the time since start to the cost of a wiring.
+	 * @param start the start time from {@link System#nanoTime()}
+	 */
+	void add(BundleWiring wiring, Cost cost, long start) {
+		addNanos(wiring, cost, System.nanoTime() - start);
+	}
+
+	void addNanos(BundleWiring wiring, Cost cost, long nanos) {
+		costs.computeIfAbsent(wiring, WiringCost::new).nanos.addAndGet(cost.ordinal(), nanos);
+	}
+
+	/**
+	 * Splits the time since start evenly between the wirings.
+	 * @param start the start time from {@link System#nanoTime()}
+	 */
+	void split(Collection<BundleWiring> wirings, Cost cost, long start) {
+		splitNanos(wirings, cost, System.nanoTime() - start);
+	}
+
+	void splitNanos(Collection<BundleWiring> wirings, Cost cost, long nanos) {
+		if (wirings.isEmpty()) {
+			return;
+		}
+		long each = nanos / wirings.size();
+		for (BundleWiring wiring : wirings) {
+			addNanos(wiring, cost, each);
+		}
+	}
+
+	void setFallback(BundleWiring wiring, String fallback) {
+		WiringCost cost = fallback == null ? costs.get(wiring) : costs.computeIfAbsent(wiring, WiringCost::new);
+		if (cost != null) {
+			cost.fallback = fallback;
+		}
+	}
+
+	void remove(BundleWiring wiring) {
+		costs.remove(wiring);
+	}
+
+	List<BundleCost> getRanked(int limit) {
+		List<WiringCost> ranked = new ArrayList<>(costs.size());
+		for (WiringCost cost : costs.values()) {
+			ranked.add(cost.copy());
+		}
+		return LayerMetricsImpl.top(ranked, Comparator.comparingLong((WiringCost c) -> c.getTotal(TimeUnit.NANOSECONDS)).reversed(), limit);
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.lang.module.ModuleDescriptor.Requires;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.wiring.BundleWiring;
+
+import osgi.jpms.internal.layer.LayerInspection.BundleEntry;
+
+/**
+ * An immutable view of the bundle modules at a version of the bundle layers.
+ * It allows named layers to be resolved and the layers to be inspected without
+ * holding the layers lock.
+ */
+public final class BundleLayerSnapshot {
+	private final long version;
+	private final Map<String, Set<Module>> modulesByName;
+	// the data the LayerInspection is created from
+	final Map<BundleWiring, Module> modules;
+	final Map<BundleWiring, BundleEntry> entries;
+	final Map<Module, Integer> addedReads;
+	final int controllers;
+	final int staleControllers;
+	final int staleNamedLayerEntries;
+
+	BundleLayerSnapshot(long version, Map<String, Set<Module>> modulesByName, Map<BundleWiring, Module> modules, Map<BundleWiring, BundleEntry> entries, Map<Module, Integer> addedReads, int controllers, int staleControllers, int staleNamedLayerEntries) {
+		this.version = version;
+		Map<String, Set<Module>> copy = new HashMap<>(modulesByName.size());
+		modulesByName.forEach((n, named) -> copy.put(n, Collections.unmodifiableSet(new HashSet<>(named))));
+		this.modulesByName = Collections.unmodifiableMap(copy);
+		this.modules = Collections.unmodifiableMap(new HashMap<>(modules));
+		this.entries = Collections.unmodifiableMap(new HashMap<>(entries));
+		this.addedReads = Collections.unmodifiableMap(new HashMap<>(addedReads));
+		this.controllers = controllers;
+		this.staleControllers = staleControllers;
+		this.staleNamedLayerEntries = staleNamedLayerEntries;
+	}
+
+	/**
+	 * The version of the bundle layers this snapshot was taken from.
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Finds the bundle modules with the specified names.
+	 * @param names the module names
+	 * @param transitive if true the bundle modules required by the found modules are also included
+	 * @return the bundle modules found
+	 */
+	public Set<Module> findBundleModules(Set<String> names, boolean transitive) {
+		Set<Module> result = new LinkedHashSet<>();
+		Deque<String> toFind = new ArrayDeque<>(names);
+		Set<String> visited = new HashSet<>(names);
+		while (!toFind.isEmpty()) {
+			Set<Module> found = modulesByName.get(toFind.poll());
+			if (found != null) {
+				for (Module m : found) {
+					if (result.add(m) && transitive) {
+						for (Requires r : m.getDescriptor().requires()) {
+							if (visited.add(r.name())) {
+								toFind.add(r.name());
+							}
+						}
+					}
+				}
+			}
+		}
+		return result;
+	}
+}
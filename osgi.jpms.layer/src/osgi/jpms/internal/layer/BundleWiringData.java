@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.wiring.BundleWiring;
+
+import osgi.jpms.internal.layer.EquinoxJPMSSupport.EquinoxJPMSStorageHook;
+
+/**
+ * Provides the private packages and the fallbacks of bundle wirings.  The data
+ * is stored with the framework storage of the host generation so it is persisted
+ * with the framework and is discarded when the bundle is updated.  The framework
+ * writes its storage when bundles are installed, updated or resolved, which is
+ * when the data of a new wiring is computed.
+ * <p>
+ * The exports and substitutes of a wiring are not stored because they depend on the
+ * substitution choices of the resolver.  They are cheap to get from the wiring.
+ */
+public class BundleWiringData {
+	enum Fallback {
+		/**
+		 * The layer hierarchy failed to resolve; use a flat layer
+		 */
+		FLAT,
+		/**
+		 * No layer could be resolved; use the unnamed module
+		 */
+		UNNAMED;
+	}
+
+	// data for generations that have no storage hook; for example
+	// generations loaded before the storage hook was installed
+	private final Map<BundleWiringLastModified, WiringContentData> notStored = new HashMap<>();
+
+	/**
+	 * Removes the data kept in memory for a wiring that is no longer in use.
+	 * The data of a revision that is still wired is kept for its new wiring.
+	 * @param wiring the wiring no longer in use
+	 */
+	void remove(BundleWiring wiring) {
+		if (!notStored.isEmpty() && wiring.getRevision().getWiring() == null) {
+			notStored.remove(new BundleWiringLastModified(wiring));
+		}
+	}
+
+	public Set<BundlePackage> getPrivates(BundleWiring wiring, Set<BundlePackage> exports) {
+		if (wiring.getBundle().getBundleId() == 0) {
+			return Collections.emptySet();
+		}
+		WiringContentData data = getData(wiring);
+		Set<String> packages = data.packages;
+		if (packages == null) {
+			packages = findPackages(wiring);
+			putData(wiring, data.withPackages(packages));
+		}
+		Set<BundlePackage> results = new HashSet<>();
+		for (String p : packages) {
+			results.add(BundlePackage.createSimplePackage(p));
+		}
+		results.removeAll(exports);
+		return results;
+	}
+
+	private static Set<String> findPackages(BundleWiring wiring) {
+		// TODO JPMS-ISSUE-002: (Low Priority) Need to scan for private packages.
+		// Can the Layer API be enhanced to map a classloader to a default module to use? 
+
+		Set<String> results = new HashSet<>();
+
+		// Look for private packages.  Each private package needs to be known
+		// to the JPMS otherwise the classes in them will be associated with the
+		// unknown module.
+		// Discover packages the hard way
+		// TODO could look the Private-Package header bnd produces
+		Collection<String> classes = wiring.listResources("/", "*.class", BundleWiring.LISTRESOURCES_LOCAL | BundleWiring.LISTRESOURCES_RECURSE);
+		for (String path : classes) {
+			int beginIndex = 0;
+			if (path.startsWith("/")) {
+				beginIndex = 1;
+			}
+			int endIndex = path.lastIndexOf('/');
+			if (endIndex >= 0) {
+				path = path.substring(beginIndex, endIndex);
+				results.add(path.replace('/', '.'));
+			}
+		}
+		return results;
+	}
+
+	public Fallback getFallback(BundleWiring wiring) {
+		return getData(wiring).getFallback(wiring);
+	}
+
+	public void setFallback(BundleWiring wiring, Fallback fallback) {
+		putData(wiring, getData(wiring).withFallback(fallback, wiring));
+	}
+
+	private WiringContentData getData(BundleWiring wiring) {
+		EquinoxJPMSStorageHook hook = EquinoxJPMSSupport.getStorageHook(wiring.getRevision());
+		WiringContentData data = hook != null ? hook.getWiringData() : notStored.get(new BundleWiringLastModified(wiring));
+		if (data == null || !data.isFor(wiring)) {
+			// the attached fragments changed
+			data = WiringContentData.empty(wiring);
+		}
+		return data;
+	}
+
+	private void putData(BundleWiring wiring, WiringContentData data) {
+		EquinoxJPMSStorageHook hook = EquinoxJPMSSupport.getStorageHook(wiring.getRevision());
+		if (hook != null) {
+			hook.setWiringData(data);
+		} else {
+			notStored.put(new BundleWiringLastModified(wiring), data);
+		}
+	}
+}
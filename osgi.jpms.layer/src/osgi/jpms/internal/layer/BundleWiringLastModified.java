@@ -19,6 +19,7 @@
 package osgi.jpms.internal.layer;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
@@ -49,6 +50,10 @@ public class BundleWiringLastModified implements Serializable {
 		}
 	}
 
+	public Map<Long, Long> getLastModifieds() {
+		return Collections.unmodifiableMap(lastModifieds);
+	}
+
 	@Override
 	public boolean equals(Object other) {
 		if (other instanceof BundleWiringLastModified) {
@@ -23,19 +23,28 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.module.ModuleDescriptor;
 import java.lang.module.ModuleDescriptor.Exports;
 import java.lang.module.ModuleDescriptor.Provides;
-import java.lang.module.ModuleDescriptor.Requires;
 import java.lang.module.ModuleFinder;
 import java.lang.module.ModuleReference;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -44,6 +53,7 @@ import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 
 import org.eclipse.osgi.container.ModuleContainerAdaptor.ModuleEvent;
+import org.eclipse.osgi.container.ModuleRevision;
 import org.eclipse.osgi.container.ModuleRevisionBuilder;
 import org.eclipse.osgi.internal.hookregistry.ActivatorHookFactory;
 import org.eclipse.osgi.internal.hookregistry.HookConfigurator;
@@ -60,15 +70,29 @@ import org.osgi.framework.Version;
 import org.osgi.framework.namespace.BundleNamespace;
 import org.osgi.framework.namespace.IdentityNamespace;
 import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleRevision;
 import org.osgi.framework.wiring.FrameworkWiring;
 import org.osgi.resource.Namespace;
 
 import osgi.jpms.internal.layer.EquinoxJPMSSupport.EquinoxJPMSStorageHook;
 
-public class EquinoxJPMSSupport extends StorageHookFactory<Object, Object, EquinoxJPMSStorageHook> implements HookConfigurator, ActivatorHookFactory, BundleActivator {
+public class EquinoxJPMSSupport extends StorageHookFactory<Object, Integer, EquinoxJPMSStorageHook> implements HookConfigurator, ActivatorHookFactory, BundleActivator {
+	// version 1 stores the module info of the generation content
+	// version 2 stores the wiring content data of the generation
+	// version 3 stores the providers of the wiring fallback
+	private static final int STORAGE_VERSION = 3;
+
+	// A storage hook is needed to allow us to adaptModuleRevisionBuilder
+	public class EquinoxJPMSStorageHook extends StorageHook<Object, Integer> {
+		// true if the content has been checked for a JPMS module
+		private boolean scanned;
+		// the module found in the content; null if the content is not a JPMS module
+		private ModuleInfo moduleInfo;
+		// the data computed by the layer factory for the wiring of this generation
+		private volatile WiringContentData wiringData;
+		// the trimmed layer type header of this generation; empty if there is none
+		private volatile String layerTypeHeader;
 
-	// A storage hook is needed only to allow us to adaptModuleRevisionBuilder
-	public class EquinoxJPMSStorageHook extends StorageHook<Object, Object> {
 		public EquinoxJPMSStorageHook(Generation generation) {
 			super(generation, EquinoxJPMSSupport.class);
 		}
@@ -79,45 +103,108 @@ public class EquinoxJPMSSupport extends StorageHookFactory<Object, Object, Equin
 		}
 
 		@Override
-		public void load(Object loadContext, DataInputStream is) throws IOException {
-			// nothing
+		public void load(Integer version, DataInputStream is) throws IOException {
+			if (version < 1) {
+				// the content is scanned again
+				return;
+			}
+			scanned = is.readBoolean();
+			if (scanned && is.readBoolean()) {
+				moduleInfo = ModuleInfo.read(is);
+			}
+			if (version == 2) {
+				// the wiring content data of version 2 is computed again,
+				// but it must be read so the next generation starts in the right place
+				if (is.readBoolean()) {
+					WiringContentData.skipWithoutProviders(is);
+				}
+			} else if (version >= 3 && is.readBoolean()) {
+				wiringData = WiringContentData.read(is);
+			}
 		}
 
 		@Override
 		public void save(Object saveContext, DataOutputStream os) throws IOException {
-			// nothing
+			os.writeBoolean(scanned);
+			if (scanned) {
+				os.writeBoolean(moduleInfo != null);
+				if (moduleInfo != null) {
+					moduleInfo.write(os);
+				}
+			}
+			WiringContentData currentData = wiringData;
+			os.writeBoolean(currentData != null);
+			if (currentData != null) {
+				currentData.write(os);
+			}
+		}
+
+		WiringContentData getWiringData() {
+			return wiringData;
+		}
+
+		void setWiringData(WiringContentData wiringData) {
+			this.wiringData = wiringData;
+		}
+
+		String getLayerTypeHeader() {
+			String header = layerTypeHeader;
+			if (header == null) {
+				// the headers of this generation, not the current headers of the bundle
+				header = getGeneration().getHeaders("").get(LayerTypePolicy.LAYER_TYPE_HEADER);
+				header = header == null ? "" : header.trim();
+				layerTypeHeader = header;
+			}
+			return header.isEmpty() ? null : header;
 		}
 
 		@Override
 		public ModuleRevisionBuilder adaptModuleRevisionBuilder(ModuleEvent operation, org.eclipse.osgi.container.Module origin,
 				ModuleRevisionBuilder builder) {
+			if (BOOT_LAYER_LOCATION.equals(getGeneration().getBundleInfo().getLocation())) {
+				// the boot layer bundle must also be found by bundles that require a boot module
+				for (Module module : ModuleLayer.boot().modules()) {
+					builder.addCapability(
+							BundleNamespace.BUNDLE_NAMESPACE,
+							Map.of(),
+							Map.of(
+									BundleNamespace.BUNDLE_NAMESPACE, module.getName(),
+									BundleNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE, Version.valueOf(getBootVersion(module)),
+									LayerFactoryImpl.BOOT_JPMS_MODULE, "true",
+									LayerFactoryImpl.BOOT_JPMS_MODULE_NAME, module.getName()));
+				}
+				return builder;
+			}
 			if (builder.getSymbolicName() == null) {
 				// only do this if this doesn't have a bsn
-				File f = getGeneration().getContent();
-				try {
-					ModuleFinder finder = ModuleFinder.of(f.toPath());
-					Set<ModuleReference> found = finder.findAll();
-					if (found.size() == 1) {
+				if (!scanned) {
+					File f = getGeneration().getContent();
+					try {
+						ModuleFinder finder = ModuleFinder.of(f.toPath());
+						Set<ModuleReference> found = finder.findAll();
 						// we only pay attention if we find exactly 1 module
-						return createBuilder(found.iterator().next());
+						moduleInfo = found.size() == 1 ? ModuleInfo.of(found.iterator().next().descriptor()) : null;
+						scanned = true;
+					} catch (Exception e) {
+						// TODO should log
+						e.printStackTrace();
 					}
-				} catch (Exception e) {
-					// TODO should log
-					e.printStackTrace();
+				}
+				if (moduleInfo != null) {
+					return createBuilder(moduleInfo);
 				}
 			}
 			// fall back to default
 			return super.adaptModuleRevisionBuilder(operation, origin, builder);
 		}
 
-		private ModuleRevisionBuilder createBuilder(ModuleReference ref) {
-			ModuleDescriptor desc = ref.descriptor();
+		private ModuleRevisionBuilder createBuilder(ModuleInfo desc) {
 			ModuleRevisionBuilder builder = new ModuleRevisionBuilder();
-			builder.setSymbolicName(desc.name());
+			builder.setSymbolicName(desc.name);
 
-			Version version = desc.version().map((v) -> {
+			Version version = Optional.ofNullable(desc.version).map((v) -> {
 				try {
-					return Version.valueOf(v.toString());
+					return Version.valueOf(v);
 				} catch (IllegalArgumentException e) {
 					return Version.emptyVersion;
 				}
@@ -129,48 +216,48 @@ public class EquinoxJPMSSupport extends StorageHookFactory<Object, Object, Equin
 					BundleNamespace.BUNDLE_NAMESPACE,
 					Map.of(),
 					Map.of(
-							BundleNamespace.BUNDLE_NAMESPACE, desc.name(),
+							BundleNamespace.BUNDLE_NAMESPACE, desc.name,
 							BundleNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE, version));
 			builder.addCapability(
 					IdentityNamespace.IDENTITY_NAMESPACE,
 					Map.of(),
 					Map.of(
-							IdentityNamespace.IDENTITY_NAMESPACE, desc.name(),
+							IdentityNamespace.IDENTITY_NAMESPACE, desc.name,
 							IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE, version));
 
-			for(Exports exports : desc.exports()) {
+			for(String exports : desc.exports.keySet()) {
 				// TODO map targets to x-friends directive.
 				builder.addCapability(
 						PackageNamespace.PACKAGE_NAMESPACE,
 						Map.of(),
-						Map.of(PackageNamespace.PACKAGE_NAMESPACE, exports.source()));
+						Map.of(PackageNamespace.PACKAGE_NAMESPACE, exports));
 			}
 
-			for(Provides provides : desc.provides()) {
+			for(Map.Entry<String, List<String>> provides : desc.provides.entrySet()) {
 				builder.addCapability(
 						JpmsServiceNamespace.JPMS_SERVICE_NAMESPACE,
 						Map.of(),
 						Map.of(
-								JpmsServiceNamespace.JPMS_SERVICE_NAMESPACE, provides.service(),
-								JpmsServiceNamespace.CAPABILITY_PROVIDES_WITH, provides.providers()));
+								JpmsServiceNamespace.JPMS_SERVICE_NAMESPACE, provides.getKey(),
+								JpmsServiceNamespace.CAPABILITY_PROVIDES_WITH, provides.getValue()));
 			}
 
-			for (Requires requires : desc.requires()) {
+			for (ModuleInfo.Require requires : desc.requires) {
 				Map<String, String> directives = new HashMap<>();
 
 				// determine the resolution value based on the STATIC modifier
-				String resolution = requires.modifiers().contains(Requires.Modifier.STATIC) ? Namespace.RESOLUTION_OPTIONAL : Namespace.RESOLUTION_MANDATORY;
+				String resolution = requires.isStatic ? Namespace.RESOLUTION_OPTIONAL : Namespace.RESOLUTION_MANDATORY;
 				directives.put(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE, resolution);
 				// determine the visibility value based on the TRANSITIVE modifier
-				String visibility = requires.modifiers().contains(Requires.Modifier.TRANSITIVE) ? BundleNamespace.VISIBILITY_REEXPORT : BundleNamespace.VISIBILITY_PRIVATE;
+				String visibility = requires.isTransitive ? BundleNamespace.VISIBILITY_REEXPORT : BundleNamespace.VISIBILITY_PRIVATE;
 				directives.put(BundleNamespace.REQUIREMENT_VISIBILITY_DIRECTIVE, visibility);
 				// create a bundle filter based on the requires name 
-				directives.put(Namespace.REQUIREMENT_FILTER_DIRECTIVE, "(" + BundleNamespace.BUNDLE_NAMESPACE + "=" + requires.name() + ")");
+				directives.put(Namespace.REQUIREMENT_FILTER_DIRECTIVE, "(" + BundleNamespace.BUNDLE_NAMESPACE + "=" + requires.name + ")");
 
 				builder.addRequirement(BundleNamespace.BUNDLE_NAMESPACE, directives, Collections.emptyMap());
 			}
 
-			for(String uses : desc.uses()) {
+			for(String uses : desc.uses) {
 				builder.addRequirement(JpmsServiceNamespace.JPMS_SERVICE_NAMESPACE,
 						Map.of(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE, Namespace.RESOLUTION_OPTIONAL,
 								Namespace.REQUIREMENT_FILTER_DIRECTIVE, "(" + JpmsServiceNamespace.JPMS_SERVICE_NAMESPACE + "=" + uses + ")"),
@@ -182,6 +269,24 @@ public class EquinoxJPMSSupport extends StorageHookFactory<Object, Object, Equin
 	}
 
 	private static final String bootModuleLocationPrefix = "jpmsBootModule:";
+	private static final String BOOT_FINGERPRINT_FILE = "osgi.jpms.layer/boot.fingerprint";
+	private static final String SINGLE_BOOT_BUNDLE_PROP = "osgi.jpms.layer.boot.single";
+	private static final String BOOT_LAYER_NAME = "equinox.boot.layer";
+	private static final String BOOT_LAYER_LOCATION = bootModuleLocationPrefix + BOOT_LAYER_NAME;
+	// module names cannot contain '@'
+	private static final String MODE_KEY = "@mode";
+	private static final String MODE_SINGLE = "single";
+	private static final String MODE_MODULES = "modules";
+
+	static EquinoxJPMSStorageHook getStorageHook(BundleRevision revision) {
+		if (revision instanceof ModuleRevision) {
+			Object info = ((ModuleRevision) revision).getRevisionInfo();
+			if (info instanceof Generation) {
+				return ((Generation) info).getStorageHook(EquinoxJPMSSupport.class);
+			}
+		}
+		return null;
+	}
 
 	@Override
 	public void addHooks(HookRegistry hookRegistry)  {
@@ -191,7 +296,18 @@ public class EquinoxJPMSSupport extends StorageHookFactory<Object, Object, Equin
 
 	@Override
 	public int getStorageVersion() {
-		return 0;
+		return STORAGE_VERSION;
+	}
+
+	@Override
+	public boolean isCompatibleWith(int version) {
+		// older versions did not store anything
+		return version <= STORAGE_VERSION;
+	}
+
+	@Override
+	public Integer createLoadContext(int version) {
+		return version;
 	}
 
 	@Override
@@ -206,22 +322,67 @@ public class EquinoxJPMSSupport extends StorageHookFactory<Object, Object, Equin
 
 	@Override
 	public void start(BundleContext context) throws Exception {
-		// keep track of the boot modules that should be installed
-		Set<String> bootModuleLocations = new HashSet<>();
-		// make sure all boot modules are installed
-		Set<Module> bootModules = new TreeSet<Module>((m1, m2) ->{return m1.getName().compareTo(m2.getName());});
-		bootModules.addAll(ModuleLayer.boot().modules());
-		for (Module module : bootModules) {
-			bootModuleLocations.add(installBootModule(module, context));
+		boolean singleBootBundle = Boolean.parseBoolean(context.getProperty(SINGLE_BOOT_BUNDLE_PROP));
+		String mode = singleBootBundle ? MODE_SINGLE : MODE_MODULES;
+		Map<String, Module> bootModules = new TreeMap<>();
+		Map<String, String> fingerprint = new TreeMap<>();
+		for (Module module : ModuleLayer.boot().modules()) {
+			bootModules.put(module.getName(), module);
+			fingerprint.put(module.getName(), fingerprint(module));
+		}
+		fingerprint.put(MODE_KEY, mode);
+		Properties previous = loadFingerprint(context);
+		if (previous != null && fingerprint.equals(previous)) {
+			// the boot layer has not changed since the boot modules were installed
+			return;
 		}
+		if (previous != null && !mode.equals(previous.getProperty(MODE_KEY, MODE_MODULES))) {
+			// the bundles of the other mode must all be uninstalled
+			previous = null;
+		}
+
 		Set<Bundle> refresh = new HashSet<>();
-		for (Bundle b : context.getBundles()) {
-			String bLoc = b.getLocation();
-			if (bLoc.startsWith(bootModuleLocationPrefix) && !bootModuleLocations.contains(b.getLocation())) {
-				// something changed in VM configuration since last start;
-				// must uninstall this boot module
-				b.uninstall();
-				refresh.add(b);
+		Set<String> bootModuleLocations = new HashSet<>();
+		if (singleBootBundle) {
+			bootModuleLocations.add(BOOT_LAYER_LOCATION);
+			Bundle installed = context.getBundle(BOOT_LAYER_LOCATION);
+			if (installed == null) {
+				context.installBundle(BOOT_LAYER_LOCATION, createBootLayerContent(bootModules.values()));
+			} else {
+				// something changed in VM configuration since last start
+				installed.update(createBootLayerContent(bootModules.values()));
+				refresh.add(installed);
+			}
+		} else {
+			for (Module module : bootModules.values()) {
+				String bootLocation = bootModuleLocationPrefix + module.getName();
+				bootModuleLocations.add(bootLocation);
+				Bundle installed = context.getBundle(bootLocation);
+				if (installed == null) {
+					context.installBundle(bootLocation, createBootModuleContent(module));
+				} else if (previous != null && !fingerprint.get(module.getName()).equals(previous.get(module.getName()))) {
+					// something changed in VM configuration for this module since last start
+					installed.update(createBootModuleContent(module));
+					refresh.add(installed);
+				}
+			}
+		}
+		if (previous != null) {
+			if (!singleBootBundle) {
+				// only the boot modules that were installed before can be stale
+				for (String name : previous.stringPropertyNames()) {
+					if (!MODE_KEY.equals(name) && !bootModules.containsKey(name)) {
+						uninstallBootModule(context.getBundle(bootModuleLocationPrefix + name), refresh);
+					}
+				}
+			}
+		} else {
+			// nothing is known about the previous boot layer; check all bundles
+			for (Bundle b : context.getBundles()) {
+				String bLoc = b.getLocation();
+				if (bLoc.startsWith(bootModuleLocationPrefix) && !bootModuleLocations.contains(bLoc)) {
+					uninstallBootModule(b, refresh);
+				}
 			}
 		}
 		if (!refresh.isEmpty()) {
@@ -229,40 +390,119 @@ public class EquinoxJPMSSupport extends StorageHookFactory<Object, Object, Equin
 			context.getBundle(Constants.SYSTEM_BUNDLE_LOCATION).adapt(FrameworkWiring.class).refreshBundles(refresh, (e) -> latch.countDown());
 			latch.await(10, TimeUnit.SECONDS);
 		}
+		saveFingerprint(context, fingerprint);
 	}
 
-	private String installBootModule(Module module, BundleContext context) throws IOException, BundleException {
-		String bootLocation = bootModuleLocationPrefix + module.getName();
-		if (context.getBundle(bootLocation) == null) {
-			Manifest m = new Manifest();
-			Attributes mainAttrs = m.getMainAttributes();
-			mainAttrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
-			mainAttrs.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
-			mainAttrs.putValue(Constants.BUNDLE_SYMBOLICNAME, module.getName() + "; " + LayerFactoryImpl.BOOT_JPMS_MODULE + "=true");
-			mainAttrs.putValue(Constants.BUNDLE_VERSION, module.getDescriptor().version().map((v) -> {
-				String s = v.toString();
-				int indexDash = s.indexOf('-');
-				if (indexDash >= 0) {
-					s = s.substring(0, indexDash);
-				}
-				return s;
-			}).orElse("0.0.0"));
-			StringBuilder exportPackages = new StringBuilder();
-			for (Exports exports : module.getDescriptor().exports()) {
-				if (exports.targets().isEmpty() && !exports.source().startsWith("java.")) {
-					if (exportPackages.length() > 0) {
-						exportPackages.append(", ");
-					}
-					exportPackages.append(exports.source());
-					exportPackages.append("; mandatory:=").append(LayerFactoryImpl.BOOT_JPMS_MODULE);
-					exportPackages.append("; ").append(LayerFactoryImpl.BOOT_JPMS_MODULE).append("=true");
-				}
+	private static void uninstallBootModule(Bundle b, Set<Bundle> refresh) throws BundleException {
+		if (b != null) {
+			// something changed in VM configuration since last start;
+			// must uninstall this boot module
+			b.uninstall();
+			refresh.add(b);
+		}
+	}
+
+	/**
+	 * The fingerprint of a boot module includes everything that is used
+	 * to create the content of the boot module bundle.
+	 */
+	private static String fingerprint(Module module) {
+		ModuleDescriptor desc = module.getDescriptor();
+		StringBuilder result = new StringBuilder();
+		result.append(desc.version().map(Object::toString).orElse(""));
+		result.append('|').append(new TreeSet<>(getBootExports(module)));
+		Set<String> provides = new TreeSet<>();
+		for (Provides p : desc.provides()) {
+			provides.add(p.service() + '=' + p.providers());
+		}
+		result.append('|').append(provides);
+		return result.toString();
+	}
+
+	private static Properties loadFingerprint(BundleContext context) {
+		File fingerprintFile = context.getDataFile(BOOT_FINGERPRINT_FILE);
+		if (fingerprintFile == null || !fingerprintFile.isFile()) {
+			return null;
+		}
+		Properties fingerprint = new Properties();
+		try (InputStream in = new FileInputStream(fingerprintFile)) {
+			fingerprint.load(in);
+			return fingerprint;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static void saveFingerprint(BundleContext context, Map<String, String> fingerprint) {
+		File fingerprintFile = context.getDataFile(BOOT_FINGERPRINT_FILE);
+		if (fingerprintFile == null) {
+			return;
+		}
+		fingerprintFile.getParentFile().mkdirs();
+		Properties props = new Properties();
+		props.putAll(fingerprint);
+		try (OutputStream out = new FileOutputStream(fingerprintFile)) {
+			props.store(out, "JPMS boot layer");
+		} catch (IOException e) {
+			// the boot modules are reconciled again on the next start
+			fingerprintFile.delete();
+		}
+	}
+
+	private static List<String> getBootExports(Module module) {
+		List<String> result = new ArrayList<>();
+		for (Exports exports : module.getDescriptor().exports()) {
+			if (exports.targets().isEmpty() && !exports.source().startsWith("java.")) {
+				result.add(exports.source());
 			}
-			if (exportPackages.length() > 0) {
-				mainAttrs.putValue(Constants.EXPORT_PACKAGE, exportPackages.toString());
+		}
+		return result;
+	}
+
+	private static String getBootVersion(Module module) {
+		return module.getDescriptor().version().map((v) -> {
+			String s = v.toString();
+			int indexDash = s.indexOf('-');
+			if (indexDash >= 0) {
+				s = s.substring(0, indexDash);
+			}
+			return s;
+		}).orElse("0.0.0");
+	}
+
+	private InputStream createBootModuleContent(Module module) throws IOException {
+		return createBootContent(module.getName(), getBootVersion(module), Collections.singleton(module), false);
+	}
+
+	private InputStream createBootLayerContent(Collection<Module> modules) throws IOException {
+		return createBootContent(BOOT_LAYER_NAME, Runtime.version().major() + ".0.0", modules, true);
+	}
+
+	/**
+	 * Creates the content of a bundle for boot modules.  When the bundle is for more
+	 * than one module the capabilities name the boot module they come from.
+	 */
+	private InputStream createBootContent(String symbolicName, String version, Collection<Module> modules, boolean nameModules) throws IOException {
+		Manifest m = new Manifest();
+		Attributes mainAttrs = m.getMainAttributes();
+		mainAttrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		mainAttrs.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+		mainAttrs.putValue(Constants.BUNDLE_SYMBOLICNAME, symbolicName + "; " + LayerFactoryImpl.BOOT_JPMS_MODULE + "=true");
+		mainAttrs.putValue(Constants.BUNDLE_VERSION, version);
+		StringBuilder exportPackages = new StringBuilder();
+		StringBuilder provideCapability = new StringBuilder();
+		for (Module module : modules) {
+			String moduleAttr = nameModules ? "; " + LayerFactoryImpl.BOOT_JPMS_MODULE_NAME + "=" + module.getName() : "";
+			for (String export : getBootExports(module)) {
+				if (exportPackages.length() > 0) {
+					exportPackages.append(", ");
+				}
+				exportPackages.append(export);
+				exportPackages.append("; mandatory:=").append(LayerFactoryImpl.BOOT_JPMS_MODULE);
+				exportPackages.append("; ").append(LayerFactoryImpl.BOOT_JPMS_MODULE).append("=true");
+				exportPackages.append(moduleAttr);
 			}
 
-			StringBuilder provideCapability = new StringBuilder();
 			for(Provides provides : module.getDescriptor().provides()) {
 				if (provideCapability.length() > 0) {
 					provideCapability.append(", ");
@@ -277,19 +517,22 @@ public class EquinoxJPMSSupport extends StorageHookFactory<Object, Object, Equin
 				provideCapability.setLength(provideCapability.length() - 1);
 				provideCapability.append('\"');
 				provideCapability.append("; ").append(LayerFactoryImpl.BOOT_JPMS_MODULE).append("=true");
+				provideCapability.append(moduleAttr);
 			}
-			if (provideCapability.length() > 0) {
-				mainAttrs.putValue(Constants.PROVIDE_CAPABILITY, provideCapability.toString());
-			}
+		}
+		if (exportPackages.length() > 0) {
+			mainAttrs.putValue(Constants.EXPORT_PACKAGE, exportPackages.toString());
+		}
+		if (provideCapability.length() > 0) {
+			mainAttrs.putValue(Constants.PROVIDE_CAPABILITY, provideCapability.toString());
+		}
 
-			mainAttrs.putValue(Constants.REQUIRE_BUNDLE, Constants.SYSTEM_BUNDLE_SYMBOLICNAME);
+		mainAttrs.putValue(Constants.REQUIRE_BUNDLE, Constants.SYSTEM_BUNDLE_SYMBOLICNAME);
 
-			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-			JarOutputStream jarOut = new JarOutputStream(bytes, m);
-			jarOut.close();
-			context.installBundle(bootLocation, new ByteArrayInputStream(bytes.toByteArray()));
-		}
-		return bootLocation;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		JarOutputStream jarOut = new JarOutputStream(bytes, m);
+		jarOut.close();
+		return new ByteArrayInputStream(bytes.toByteArray());
 	}
 
 	@Override
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.wiring.BundleWiring;
+
+import osgi.jpms.layer.LayerMetrics.Phase;
+
+/**
+ * The flight recorder events of the layer factory.  The bundle requires JavaSE-9,
+ * so the {@code jdk.jfr} API is only used reflectively.  The event types are
+ * created with {@code jdk.jfr.EventFactory}, which is available from Java 12.
+ */
+class JfrLayerEvents extends LayerEvents {
+	private static final String[] CATEGORY = {"OSGi", "JPMS Layers"};
+
+	private final Class<? extends Annotation> nameType;
+	private final Class<? extends Annotation> labelType;
+	private final Class<? extends Annotation> categoryType;
+	private final Class<? extends Annotation> stackTraceType;
+	private final Class<? extends Annotation> thresholdType;
+	private final Constructor<?> annotationElement;
+	private final Constructor<?> valueDescriptor;
+	private final Method create;
+	private final Method newEvent;
+	private final Method isEnabled;
+	private final Method set;
+	private final Method begin;
+	private final Method commit;
+
+	private final Object phaseType;
+	private final Object createModuleType;
+	private final Object defineModulesType;
+	private final Object unnamedFallbackType;
+	private final Object namedLayerCreatedType;
+	private final Object namedLayerInvalidatedType;
+	private final Object classDefineWaitType;
+
+	JfrLayerEvents(Module jfr) throws ReflectiveOperationException {
+		nameType = load(jfr, "jdk.jfr.Name").asSubclass(Annotation.class);
+		labelType = load(jfr, "jdk.jfr.Label").asSubclass(Annotation.class);
+		categoryType = load(jfr, "jdk.jfr.Category").asSubclass(Annotation.class);
+		stackTraceType = load(jfr, "jdk.jfr.StackTrace").asSubclass(Annotation.class);
+		thresholdType = load(jfr, "jdk.jfr.Threshold").asSubclass(Annotation.class);
+		annotationElement = load(jfr, "jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+		valueDescriptor = load(jfr, "jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+		Class<?> eventFactory = load(jfr, "jdk.jfr.EventFactory");
+		create = eventFactory.getMethod("create", List.class, List.class);
+		newEvent = eventFactory.getMethod("newEvent");
+		Class<?> event = load(jfr, "jdk.jfr.Event");
+		isEnabled = event.getMethod("isEnabled");
+		set = event.getMethod("set", int.class, Object.class);
+		begin = event.getMethod("begin");
+		commit = event.getMethod("commit");
+
+		phaseType = createType("osgi.jpms.layer.Phase", "Layer Phase", false, null,
+				String.class, "phase", "Phase");
+		createModuleType = createType("osgi.jpms.layer.CreateModule", "Create Bundle Module", false, null,
+				long.class, "bundleId", "Bundle Id",
+				String.class, "symbolicName", "Symbolic Name");
+		defineModulesType = createType("osgi.jpms.layer.DefineModules", "Define Modules", false, null,
+				String.class, "layer", "Layer",
+				int.class, "modules", "Modules");
+		unnamedFallbackType = createType("osgi.jpms.layer.UnnamedFallback", "Unnamed Module Fallback", false, null,
+				long.class, "bundleId", "Bundle Id",
+				String.class, "symbolicName", "Symbolic Name",
+				String.class, "cause", "Cause");
+		namedLayerCreatedType = createType("osgi.jpms.layer.NamedLayerCreated", "Named Layer Created", true, null,
+				String.class, "name", "Name",
+				long.class, "id", "Id",
+				String.class, "loaderType", "Loader Type",
+				int.class, "modules", "Modules");
+		namedLayerInvalidatedType = createType("osgi.jpms.layer.NamedLayerInvalidated", "Named Layer Invalidated", false, null,
+				String.class, "name", "Name",
+				long.class, "id", "Id");
+		classDefineWaitType = createType("osgi.jpms.layer.ClassDefineWait", "Class Define Wait", true, "1 ms",
+				String.class, "className", "Class Name",
+				long.class, "bundleId", "Bundle Id",
+				String.class, "symbolicName", "Symbolic Name");
+	}
+
+	private static Class<?> load(Module jfr, String name) throws ClassNotFoundException {
+		Class<?> c = Class.forName(jfr, name);
+		if (c == null) {
+			throw new ClassNotFoundException(name);
+		}
+		return c;
+	}
+
+	/**
+	 * Creates an event type.  The fields are given as triples of type, name and label.
+	 */
+	private Object createType(String name, String label, boolean stackTrace, String threshold, Object... fields) throws ReflectiveOperationException {
+		List<Object> annotations = new ArrayList<>();
+		annotations.add(annotationElement.newInstance(nameType, name));
+		annotations.add(annotationElement.newInstance(labelType, label));
+		annotations.add(annotationElement.newInstance(categoryType, CATEGORY));
+		annotations.add(annotationElement.newInstance(stackTraceType, stackTrace));
+		if (threshold != null) {
+			annotations.add(annotationElement.newInstance(thresholdType, threshold));
+		}
+		List<Object> values = new ArrayList<>();
+		for (int i = 0; i < fields.length; i += 3) {
+			Object fieldLabel = annotationElement.newInstance(labelType, fields[i + 2]);
+			values.add(valueDescriptor.newInstance(fields[i], fields[i + 1], Arrays.asList(fieldLabel)));
+		}
+		return create.invoke(null, annotations, values);
+	}
+
+	/**
+	 * Returns a new event of the type, or null if the type is not enabled.
+	 */
+	private Object newEvent(Object type) {
+		try {
+			Object event = newEvent.invoke(type);
+			return Boolean.TRUE.equals(isEnabled.invoke(event)) ? event : null;
+		} catch (ReflectiveOperationException e) {
+			// the event is dropped
+			return null;
+		}
+	}
+
+	private void invoke(Method method, Object event, Object... args) {
+		try {
+			method.invoke(event, args);
+		} catch (ReflectiveOperationException e) {
+			// the event is dropped
+		}
+	}
+
+	private void setValues(Object event, Object... values) {
+		for (int i = 0; i < values.length; i++) {
+			invoke(set, event, i, values[i]);
+		}
+	}
+
+	private Span begin(Object type, Object... values) {
+		Object event = newEvent(type);
+		if (event == null) {
+			return NO_SPAN;
+		}
+		setValues(event, values);
+		invoke(begin, event);
+		return () -> invoke(commit, event);
+	}
+
+	private void commit(Object type, Object... values) {
+		Object event = newEvent(type);
+		if (event != null) {
+			setValues(event, values);
+			invoke(commit, event);
+		}
+	}
+
+	@Override
+	Span phase(Phase phase) {
+		return begin(phaseType, phase.name());
+	}
+
+	@Override
+	Span createModule(BundleWiring wiring) {
+		return begin(createModuleType, wiring.getBundle().getBundleId(), wiring.getRevision().getSymbolicName());
+	}
+
+	@Override
+	Span defineModules(String layer, int modules) {
+		return begin(defineModulesType, layer, modules);
+	}
+
+	@Override
+	void unnamedFallback(BundleWiring wiring, Throwable cause) {
+		commit(unnamedFallbackType, wiring.getBundle().getBundleId(), wiring.getRevision().getSymbolicName(), String.valueOf(cause));
+	}
+
+	@Override
+	void namedLayerCreated(String name, long id, String loaderType, int modules) {
+		commit(namedLayerCreatedType, name, id, loaderType, modules);
+	}
+
+	@Override
+	void namedLayerInvalidated(String name, long id) {
+		commit(namedLayerInvalidatedType, name, id);
+	}
+
+	@Override
+	Span classDefineWait(WovenClass wovenClass) {
+		BundleWiring wiring = wovenClass.getBundleWiring();
+		return begin(classDefineWaitType, wovenClass.getClassName(), wiring.getBundle().getBundleId(), wiring.getRevision().getSymbolicName());
+	}
+}
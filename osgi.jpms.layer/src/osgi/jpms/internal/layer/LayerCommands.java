@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+import osgi.jpms.internal.layer.LayerFactoryImpl.NamedLayerImpl;
+import osgi.jpms.internal.layer.LayerFactoryImpl.NamedLayerRef;
+import osgi.jpms.internal.layer.LayerInspection.BundleEntry;
+import osgi.jpms.layer.LayerMetrics.Phase;
+import osgi.jpms.layer.LayerMetrics.PhaseStats;
+
+/**
+ * Console commands for the layer factory.  The commands are found by the
+ * Gogo shell from the {@code osgi.command.scope} and {@code osgi.command.function}
+ * service properties, so there is no dependency on the shell.  The commands
+ * only read snapshots and never wait for the layers lock.
+ */
+public class LayerCommands {
+	static final String SCOPE = "jpms";
+	static final String[] FUNCTIONS = {"costs", "defines", "modules", "module", "fallbacks", "splits", "namedlayers", "phases", "footprint"};
+	private static final int DEFAULT_LIMIT = 20;
+
+	private final BundleContext context;
+	private final LayerFactoryImpl factory;
+	private final LayerMetricsImpl metrics;
+
+	LayerCommands(BundleContext context, LayerFactoryImpl factory) {
+		this.context = context;
+		this.factory = factory;
+		this.metrics = factory.getMetrics();
+	}
+
+	/**
+	 * Lists the bundle modules and their layers.
+	 */
+	public String modules() {
+		LayerInspection inspection = factory.getInspection();
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("Bundle layers version %d%n", inspection.version));
+		report.append(String.format("%6s %-40s %-32s %8s %6s %s%n", "ID", "MODULE", "LAYER TYPE", "MODULES", "READS", "LAYER PARENTS"));
+		for (BundleEntry entry : inspection.bundles) {
+			report.append(String.format("%6d %-40s %-32s %8d %6d %s%n", entry.bundleId, getModuleName(entry), entry.layerType, entry.layerModules, entry.readEdges, entry.layerParents));
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Shows the bundle module of a bundle and the boot modules it is wired to.
+	 */
+	public String module(long bundleId) {
+		BundleEntry entry = factory.getInspection().getBundle(bundleId);
+		if (entry == null) {
+			return "No bundle module for bundle " + bundleId;
+		}
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("Bundle:        %s [%d]%n", entry.symbolicName, entry.bundleId));
+		report.append(String.format("Module:        %s%n", getModuleName(entry)));
+		report.append(String.format("Layer type:    %s%n", entry.layerType));
+		report.append(String.format("Layer modules: %d%n", entry.layerModules));
+		report.append(String.format("Layer parents: %s%n", entry.layerParents));
+		report.append(String.format("Read edges:    %d%n", entry.readEdges));
+		report.append(String.format("Fallback:      %s%n", entry.fallback == null ? "-" : entry.fallback));
+		report.append(String.format("Split:         %s%n", entry.splitPackages));
+		report.append(String.format("Cycles:        %s%n", entry.cycles));
+		report.append(String.format("Boot modules:  %s%n", getBootModules(bundleId)));
+		return report.toString();
+	}
+
+	private List<String> getBootModules(long bundleId) {
+		List<String> result = new ArrayList<>();
+		Bundle bundle = context.getBundle(bundleId);
+		BundleWiring wiring = bundle == null ? null : bundle.adapt(BundleWiring.class);
+		if (wiring != null) {
+			for (BundleWire wire : wiring.getRequiredWires(null)) {
+				Module bootModule = LayerFactoryImpl.getBootModule(wire.getCapability());
+				if (bootModule != null && !result.contains(bootModule.getName())) {
+					result.add(bootModule.getName());
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Lists the bundles that fell back to the flat layer or to the unnamed module.
+	 */
+	public String fallbacks() {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%6s %-8s %s%n", "ID", "FALLBACK", "BUNDLE"));
+		for (BundleEntry entry : factory.getInspection().bundles) {
+			if (entry.fallback != null) {
+				report.append(String.format("%6d %-8s %s%n", entry.bundleId, entry.fallback, entry.symbolicName));
+			}
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Lists the bundles that cannot have a layer hierarchy because of split
+	 * packages or cycles, and the reasons.
+	 */
+	public String splits() {
+		StringBuilder report = new StringBuilder();
+		for (BundleEntry entry : factory.getInspection().bundles) {
+			if (!entry.splitPackages.isEmpty() || !entry.cycles.isEmpty()) {
+				report.append(String.format("%s [%d]%n", entry.symbolicName, entry.bundleId));
+				if (!entry.splitPackages.isEmpty()) {
+					report.append(String.format("  split packages: %s%n", entry.splitPackages));
+				}
+				if (!entry.cycles.isEmpty()) {
+					report.append(String.format("  cycles through: %s%n", entry.cycles));
+				}
+			}
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Lists the named layers and the bundle modules they depend on.
+	 */
+	public String namedlayers() {
+		StringBuilder report = new StringBuilder();
+		for (NamedLayerRef ref : factory.getNamedLayerRefs()) {
+			NamedLayerImpl namedLayer = ref.get();
+			if (namedLayer == null) {
+				continue;
+			}
+			List<String> modules = new ArrayList<>(ref.modules.size());
+			for (Module m : ref.modules) {
+				modules.add(m.getName());
+			}
+			report.append(String.format("%d %s %s%s%n", namedLayer.getId(), namedLayer.getName(), namedLayer.spec.getLoaderType(), namedLayer.isValid() ? "" : " INVALID"));
+			report.append(String.format("  depends on: %s%n", modules));
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Lists the phase timings in milliseconds.
+	 */
+	public String phases() {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%-18s %8s %10s %10s %12s%n", "PHASE", "COUNT", "LAST", "MAX", "TOTAL"));
+		for (Phase phase : Phase.values()) {
+			PhaseStats stats = metrics.getPhaseStats(phase);
+			report.append(String.format("%-18s %8d %10d %10d %12d%n", phase, stats.getCount(), stats.getLast(TimeUnit.MILLISECONDS), stats.getMax(TimeUnit.MILLISECONDS), stats.getTotal(TimeUnit.MILLISECONDS)));
+		}
+		report.append(String.format("nodes=%d modules=%d named layers=%d%n", metrics.getNodeCount(), metrics.getModuleCount(), metrics.getNamedLayerCount()));
+		return report.toString();
+	}
+
+	/**
+	 * Lists the JPMS objects retained by the bundle modules and named layers,
+	 * with the most read edges first.
+	 */
+	public String footprint() {
+		return footprint(DEFAULT_LIMIT);
+	}
+
+	public String footprint(int limit) {
+		return metrics.reportFootprints(limit);
+	}
+
+	private static String getModuleName(BundleEntry entry) {
+		return entry.moduleName == null ? "<unnamed " + entry.symbolicName + ">" : entry.moduleName;
+	}
+
+	/**
+	 * Lists the bundles with the most expensive modules first.
+	 */
+	public String costs() {
+		return costs(DEFAULT_LIMIT);
+	}
+
+	public String costs(int limit) {
+		return metrics.reportBundleCosts(limit);
+	}
+
+	/**
+	 * Lists the bundle modules that defined the most classes first.
+	 */
+	public String defines() {
+		return defines(DEFAULT_LIMIT);
+	}
+
+	public String defines(int limit) {
+		return metrics.reportModuleDefines(limit);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.util.Optional;
+
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.wiring.BundleWiring;
+
+import osgi.jpms.layer.LayerMetrics.Phase;
+
+/**
+ * Reports the work of the layer factory to the flight recorder.  This facade
+ * does nothing unless the {@code jdk.jfr} module in the boot layer can create
+ * event types at runtime, in which case the events are only written when they
+ * are enabled in a recording.
+ */
+class LayerEvents {
+	/**
+	 * A duration event which ends when it is closed.
+	 */
+	interface Span extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	static final Span NO_SPAN = () -> {};
+
+	static LayerEvents create() {
+		Optional<Module> jfr = ModuleLayer.boot().findModule("jdk.jfr");
+		if (jfr.isPresent()) {
+			try {
+				return new JfrLayerEvents(jfr.get());
+			} catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+				// the events stay disabled
+			}
+		}
+		return new LayerEvents();
+	}
+
+	Span phase(Phase phase) {
+		return NO_SPAN;
+	}
+
+	Span createModule(BundleWiring wiring) {
+		return NO_SPAN;
+	}
+
+	Span defineModules(String layer, int modules) {
+		return NO_SPAN;
+	}
+
+	void unnamedFallback(BundleWiring wiring, Throwable cause) {
+		// nothing
+	}
+
+	void namedLayerCreated(String name, long id, String loaderType, int modules) {
+		// nothing
+	}
+
+	void namedLayerInvalidated(String name, long id) {
+		// nothing
+	}
+
+	Span classDefineWait(WovenClass wovenClass) {
+		return NO_SPAN;
+	}
+}
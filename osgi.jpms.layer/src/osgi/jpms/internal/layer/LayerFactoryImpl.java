@@ -19,36 +19,51 @@
 package osgi.jpms.internal.layer;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.lang.ModuleLayer.Controller;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.module.Configuration;
+import java.lang.module.ModuleDescriptor;
 import java.lang.module.ModuleFinder;
 import java.lang.module.ResolutionException;
+import java.lang.module.ResolvedModule;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -71,7 +86,17 @@ import org.osgi.framework.wiring.FrameworkWiring;
 import org.osgi.resource.Requirement;
 import org.osgi.resource.Resource;
 
+import osgi.jpms.internal.layer.BundleWiringData.Fallback;
+import osgi.jpms.internal.layer.LayerEvents.Span;
 import osgi.jpms.layer.LayerFactory;
+import osgi.jpms.layer.LayerFactory.NamedLayer.Event;
+import osgi.jpms.layer.LayerFactory.NamedLayer.Subscription;
+import osgi.jpms.layer.LayerMetrics.Cost;
+import osgi.jpms.layer.LayerMetrics.Footprint;
+import osgi.jpms.layer.LayerMetrics.MemoryStats;
+import osgi.jpms.layer.LayerMetrics.Phase;
+import osgi.jpms.layer.LayerSpec;
+import osgi.jpms.layer.LayerSpec.LoaderType;
 
 public class LayerFactoryImpl implements LayerFactory, WovenClassListener, WeavingHook, SynchronousBundleListener, FrameworkListener {
 
@@ -81,15 +106,41 @@ public class LayerFactoryImpl implements LayerFactory, WovenClassListener, Weavi
 		MultiBundlePerLayerFlat;
 	}
 
+	/**
+	 * The registration of a named layer with the factory.  The factory only holds
+	 * named layers weakly so that the layers and their class loaders can be collected
+	 * once the callers drop them.  Named layers with consumers are held strongly until
+	 * they are unregistered so that their events are still delivered.
+	 */
+	static class NamedLayerRef extends WeakReference<NamedLayerImpl> {
+		final Set<Module> modules;
+		final SharedKey sharedKey;
+		// the named layer while it has consumers; guarded by the consumers of the layer
+		volatile NamedLayerImpl subscribed;
+		NamedLayerRef(NamedLayerImpl namedLayer, Set<Module> modules, ReferenceQueue<NamedLayerImpl> queue) {
+			super(namedLayer, queue);
+			this.modules = modules;
+			this.sharedKey = namedLayer.sharedKey;
+		}
+	}
+
 	class NamedLayerImpl implements NamedLayer {
-		final ModuleLayer layer;
+		volatile ModuleLayer layer;
 		final String name;
 		final long id = nextLayerId.getAndIncrement();
-		final AtomicReference<Consumer<Event>> consumers = new AtomicReference<>((e) -> {});
-		final AtomicReference<Boolean> isValid = new AtomicReference<>(true);
-		NamedLayerImpl(ModuleLayer layer, String name) {
+		final List<Consumer<Event>> consumers = new CopyOnWriteArrayList<>();
+		final AtomicBoolean isValid = new AtomicBoolean(true);
+		final LayerSpec spec;
+		final SharedKey sharedKey;
+		// guarded by the layers write lock
+		int refs = 1;
+		volatile NamedLayerImpl successor;
+		NamedLayerRef registration;
+		NamedLayerImpl(ModuleLayer layer, LayerSpec spec, SharedKey sharedKey) {
 			this.layer = layer;
-			this.name = name;
+			this.name = spec.getName();
+			this.spec = spec;
+			this.sharedKey = sharedKey;
 		}
 		@Override
 		public ModuleLayer getLayer() {
@@ -110,25 +161,231 @@ public class LayerFactoryImpl implements LayerFactory, WovenClassListener, Weavi
 		public boolean isValid() {
 			return isValid.get();
 		}
+
+		@Override
+		public NamedLayer getReplacement() {
+			return successor;
+		}
+
 		public void invalidate() {
-			isValid.updateAndGet((previous) -> {
-				if (previous) {
-					consumers.get().accept(Event.INVALID);
+			if (isValid.compareAndSet(true, false)) {
+				events.namedLayerInvalidated(name, id);
+				publish(this, Event.INVALID);
+			}
+		}
+		@Override
+		public Subscription subscribeEvents(Consumer<Event> consumer) {
+			// wrap the consumer so the same consumer can be subscribed more than once
+			Consumer<Event> subscribed = consumer::accept;
+			synchronized (consumers) {
+				consumers.add(subscribed);
+				registration.subscribed = this;
+			}
+			return () -> {
+				synchronized (consumers) {
+					if (consumers.remove(subscribed) && consumers.isEmpty()) {
+						registration.subscribed = null;
+					}
+				}
+			};
+		}
+
+		@Override
+		public void close() {
+			release(this);
+		}
+	}
+
+	/**
+	 * A handle to a named layer that is shared by requests for the same layer.
+	 */
+	class SharedNamedLayer implements NamedLayer {
+		final NamedLayerImpl shared;
+		final String name;
+		final AtomicBoolean closed = new AtomicBoolean();
+		final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+		// this handle owns one reference to the successor of the shared layer;
+		// guarded by the layers write lock
+		boolean successorClaimed;
+		SharedNamedLayer replacement;
+		SharedNamedLayer(NamedLayerImpl shared, String name) {
+			this.shared = shared;
+			this.name = name;
+		}
+
+		@Override
+		public ModuleLayer getLayer() {
+			return shared.getLayer();
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public long getId() {
+			return shared.getId();
+		}
+
+		@Override
+		public boolean isValid() {
+			return !closed.get() && shared.isValid();
+		}
+
+		@Override
+		public NamedLayer getReplacement() {
+			layersWrite.lock();
+			try {
+				if (!successorClaimed && !closed.get() && shared.successor != null) {
+					successorClaimed = true;
+					replacement = new SharedNamedLayer(shared.successor, name);
+				}
+				return replacement;
+			} finally {
+				layersWrite.unlock();
+			}
+		}
+
+		@Override
+		public Subscription subscribeEvents(Consumer<Event> consumer) {
+			Subscription subscription = shared.subscribeEvents(consumer);
+			subscriptions.add(subscription);
+			return () -> {
+				subscriptions.remove(subscription);
+				subscription.close();
+			};
+		}
+
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true)) {
+				// the other handles of the shared layer keep their consumers
+				subscriptions.forEach(Subscription::close);
+				layersWrite.lock();
+				try {
+					release(shared);
+					if (!successorClaimed && shared.successor != null) {
+						// the replacement was never used
+						successorClaimed = true;
+						release(shared.successor);
+					}
+				} finally {
+					layersWrite.unlock();
 				}
+			}
+		}
+	}
+
+	/**
+	 * Identifies named layers that are the same.  The layers have the same
+	 * module path content, roots, loader type and parent class loader.
+	 */
+	static class SharedKey {
+		private final LoaderType loaderType;
+		private final List<String> fingerprint;
+		private final Set<String> roots;
+		private final ClassLoader parent;
+		private final int hashCode;
+
+		SharedKey(LayerSpec spec, List<String> fingerprint) {
+			this.loaderType = spec.getLoaderType();
+			this.fingerprint = fingerprint;
+			this.roots = spec.getRoots();
+			this.parent = spec.getParent();
+			this.hashCode = Objects.hash(loaderType, fingerprint, roots, parent);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof SharedKey)) {
 				return false;
-			});
+			}
+			SharedKey other = (SharedKey) o;
+			return loaderType.equals(other.loaderType) && fingerprint.equals(other.fingerprint) && roots.equals(other.roots) && Objects.equals(parent, other.parent);
 		}
+
 		@Override
-		public void consumeEvents(Consumer<Event> consumer) {
-			consumers.updateAndGet((previous) -> previous.andThen(consumer));
+		public int hashCode() {
+			return hashCode;
 		}
-		
 	}
 
-	enum LoaderType {
-		OneLoader,
-		ManyLoaders,
-		MappedLoaders;
+	/**
+	 * A named layer that is being resolved and defined.
+	 */
+	static class PendingLayer {
+		final LayerSpec spec;
+		final NamedLayerConfigurations.ModulePath modulePath;
+		final List<PendingLayer> parents;
+		// the directly required bundle modules are parents of the layer
+		final Set<Module> dependsOn;
+		// the named layer becomes invalid if any bundle module it can reach goes away
+		final Set<Module> reachable;
+		// Mapped loaders belong to the caller and can only have the modules defined once;
+		// they and their children are defined after the snapshot is validated.
+		final boolean defineEarly;
+		volatile Configuration config;
+		volatile ModuleLayer layer;
+
+		PendingLayer(LayerSpec spec, NamedLayerConfigurations.ModulePath modulePath, List<PendingLayer> parents, BundleLayerSnapshot layersSnapshot) {
+			this.spec = spec;
+			this.modulePath = modulePath;
+			this.parents = parents;
+			this.dependsOn = layersSnapshot.findBundleModules(modulePath.getRequired(), false);
+			Set<Module> reachableModules = layersSnapshot.findBundleModules(modulePath.getRequired(), true);
+			boolean early = !LoaderType.MappedLoaders.equals(spec.getLoaderType());
+			for (PendingLayer p : parents) {
+				reachableModules.addAll(p.reachable);
+				early &= p.defineEarly;
+			}
+			this.reachable = reachableModules;
+			this.defineEarly = early;
+		}
+
+		void resolve(NamedLayerConfigurations layerConfigurations, Module systemModule) {
+			config = layerConfigurations.resolveAndBind(modulePath, spec.getRoots(), getParentLayers(systemModule, (l) -> l.configuration(), (p) -> p.config));
+		}
+
+		void define(Module systemModule, LayerEvents events) {
+			List<ModuleLayer> layers = getParentLayers(systemModule, Function.identity(), (p) -> p.layer);
+			Span defineEvent = events.defineModules(spec.getName(), config.modules().size());
+			try {
+				defineModules(layers);
+			} finally {
+				defineEvent.close();
+			}
+		}
+
+		private void defineModules(List<ModuleLayer> layers) {
+			switch (spec.getLoaderType()) {
+				case OneLoader:
+					layer = ModuleLayer.defineModulesWithOneLoader(config, layers, spec.getParent()).layer();
+					break;
+				case ManyLoaders :
+					layer = ModuleLayer.defineModulesWithManyLoaders(config, layers, spec.getParent()).layer();
+					break;
+				case MappedLoaders :
+					layer = ModuleLayer.defineModules(config, layers, spec.getMappedLoaders()).layer();
+					break;
+				default:
+					throw new IllegalArgumentException(spec.getLoaderType().toString());
+			}
+		}
+
+		private <T> List<T> getParentLayers(Module systemModule, Function<ModuleLayer, T> fromLayer, Function<PendingLayer, T> fromPending) {
+			List<T> result = new ArrayList<>(parents.size() + dependsOn.size() + 1);
+			// parent named layers first
+			for (PendingLayer p : parents) {
+				result.add(fromPending.apply(p));
+			}
+			for (Module d : dependsOn) {
+				result.add(fromLayer.apply(d.getLayer()));
+			}
+			// always add the system layer/configuration which give access to boot
+			result.add(fromLayer.apply(systemModule.getLayer()));
+			return result;
+		}
 	}
 
 	// requirement that finds all capabilities in the bundle namespace
@@ -155,88 +412,110 @@ public class LayerFactoryImpl implements LayerFactory, WovenClassListener, Weavi
 	};
 
 	public static final String BOOT_JPMS_MODULE = "equinox.boot.jpms.module";
+	// names the boot module of a capability when one bundle holds all the boot modules
+	public static final String BOOT_JPMS_MODULE_NAME = "equinox.boot.jpms.module.name";
+	private static final int MAX_OPTIMISTIC_ATTEMPTS = 3;
+	private static final String ASYNC_THREADS_PROP = "osgi.jpms.layer.async.threads";
+	// true for the threads of the async executor
+	private static final ThreadLocal<Boolean> IN_ASYNC_THREAD = ThreadLocal.withInitial(() -> Boolean.FALSE);
+	private static final String SHARED_LAYERS_PROP = "osgi.jpms.layer.shared";
+	private static final String REBUILD_LAYERS_PROP = "osgi.jpms.layer.rebuild";
 	private final Module systemModule;
-	private final static String CACHE_FILE = "osgi.jpms.layer/privates.cache";
+	// caches of older versions, now kept in the framework storage
+	private final static String[] OBSOLETE_CACHE_FILES = {"osgi.jpms.layer/privates.cache", "osgi.jpms.layer/fallbacks.cache"};
+	private final static String LAYER_PLAN_FILE = "osgi.jpms.layer/layer.plan";
 	private final Activator activator;
 	private final BundleContext context;
 	private final FrameworkWiring fwkWiring;
-	private final WriteLock layersWrite;
-	private final ReadLock layersRead;
+	private final Lock layersWrite;
+	private final Lock layersRead;
+	private final LayerMetricsImpl metrics;
+	private final BundleCosts costs;
+	private final ModuleDefineCounters defineCounters;
+	private final LayerEvents events = LayerEvents.create();
 	private final AtomicLong nextLayerId = new AtomicLong(0);
 	private final ResolutionGraph graph = new ResolutionGraph();
-	private final BundleWiringPrivates privatesCache;
-	private Map<Module, Collection<NamedLayerImpl>> moduleToNamedLayers = new HashMap<>();
+	private final BundleWiringData wiringData = new BundleWiringData();
+	private final RevisionIndex revisionIndex;
+	private final NamedLayerConfigurations layerConfigurations = new NamedLayerConfigurations();
+	private Map<Module, Collection<NamedLayerRef>> moduleToNamedLayers = new HashMap<>();
+	private final Map<SharedKey, NamedLayerRef> sharedLayers = new HashMap<>();
+	private final ReferenceQueue<NamedLayerImpl> collectedLayers = new ReferenceQueue<>();
+	private final boolean shareLayers;
+	private final boolean autoRebuild;
+	// held strongly so the invalid layers are rebuilt even if the callers dropped them
+	private final List<NamedLayerImpl> pendingRebuilds = new ArrayList<>();
+	// concurrent so the console commands can list the named layers without the lock
+	private final Set<NamedLayerRef> registeredLayers = ConcurrentHashMap.newKeySet();
 	private Map<BundleWiring, Module> wiringToModule = new HashMap<>();
+	private final Map<String, Set<Module>> modulesByName = new HashMap<>();
+	private volatile BundleLayerSnapshot snapshot;
+	private volatile LayerInspection inspection;
+	// the inspection entries of the bundle modules
+	private final Map<BundleWiring, LayerInspection.BundleEntry> moduleEntries = new HashMap<>();
+	// the reads added to each bundle module by addReadsNest
+	private final Map<Module, Integer> addedReads = new HashMap<>();
+	private final LayerFootprint footprint = new LayerFootprint();
 	private final HashMap<Module, Controller> controllers = new HashMap<>();
-	private final LayerType layerType;
+	// the plan saved by the previous start; only replayed for the first bundle modules
+	private LayerPlan savedPlan;
+	// the steps that created the current bundle modules, in the order they were done
+	private final Map<BundleWiring, LayerPlan.Step> planSteps = new LinkedHashMap<>();
+	private final LayerTypePolicy layerTypes;
+	private ExecutorService asyncExecutor;
+	private final ThreadPoolExecutor eventExecutor;
+	private final Set<CompletableFuture<NamedLayer>> pendingLayers = ConcurrentHashMap.newKeySet();
+	private final boolean systemLayerReachesBoot;
 
 	public LayerFactoryImpl(Activator activator, BundleContext context, Module systemModule) {
-		String layerTypeProp = context.getProperty("osgi.jpms.layer.type");
-		this.layerType = layerTypeProp == null ? LayerType.OneBundlePerLayerWithHierarchy : LayerType.valueOf(layerTypeProp);
+		this.layerTypes = new LayerTypePolicy(activator, context);
+		this.metrics = new LayerMetricsImpl(Boolean.parseBoolean(context.getProperty(LayerMetricsImpl.METRICS_PRINT_PROP)));
+		this.costs = metrics.getCosts();
+		this.defineCounters = metrics.getDefineCounters();
+		metrics.setNamedLayerModules(this::getNamedLayerModules);
+		metrics.setFootprints(this::getFootprints, this::getMemoryStats);
 		this.activator = activator;
 		this.context = context;
 		this.systemModule = systemModule;
-		long startTime = System.nanoTime();
-		privatesCache = loadPrivatesCache(context, activator);
-		System.out.println("Time loadPrivatesCache: " + TimeUnit.MILLISECONDS.convert((System.nanoTime() - startTime), TimeUnit.NANOSECONDS));
+		this.systemLayerReachesBoot = reachesBoot(systemModule.getLayer());
+		this.shareLayers = Boolean.parseBoolean(context.getProperty(SHARED_LAYERS_PROP));
+		this.autoRebuild = Boolean.parseBoolean(context.getProperty(REBUILD_LAYERS_PROP));
+		this.eventExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (r) -> {
+			Thread t = new Thread(r, "JPMS Layer Events");
+			t.setDaemon(true);
+			return t;
+		});
+		this.eventExecutor.allowCoreThreadTimeOut(true);
+		this.revisionIndex = new RevisionIndex(systemModule);
+		for (String obsolete : OBSOLETE_CACHE_FILES) {
+			File obsoleteFile = context.getDataFile(obsolete);
+			if (obsoleteFile != null) {
+				obsoleteFile.delete();
+			}
+		}
 		Bundle systemBundle = context.getBundle(Constants.SYSTEM_BUNDLE_LOCATION);
 		fwkWiring = systemBundle.adapt(FrameworkWiring.class);
+		savedPlan = LayerPlan.load(context.getDataFile(LAYER_PLAN_FILE));
 		ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-		layersWrite = lock.writeLock();
-		layersRead = lock.readLock();
+		layersWrite = new TimedLock(lock.writeLock(), lock::getWriteHoldCount, metrics, Phase.WRITE_LOCK_WAIT, Phase.WRITE_LOCK_HOLD);
+		layersRead = new TimedLock(lock.readLock(), lock::getReadHoldCount, metrics, Phase.READ_LOCK_WAIT, Phase.READ_LOCK_HOLD);
 
 		BundleWiring systemWiring = systemBundle.adapt(BundleWiring.class);
 		addToResolutionGraph(Collections.singleton(systemWiring));
-		wiringToModule.put(systemWiring, systemModule);
+		putModule(systemWiring, systemModule);
+		snapshot = createSnapshot(0);
 	}
 
-	private static BundleWiringPrivates loadPrivatesCache(BundleContext context, Activator activator) {
-		File cacheFile = context.getDataFile(CACHE_FILE);
-		if (cacheFile.exists()) {
-			ObjectInputStream ois = null;
-			try {
-				ois = new ObjectInputStream(new FileInputStream(cacheFile));
-				return (BundleWiringPrivates) ois.readObject();
-			} catch (IOException | ClassNotFoundException e) {
-				activator.logError("Failed to load privates cache.", e);
-			} finally {
-				if (ois != null) {
-					try {
-						ois.close();
-					} catch (IOException e) {
-						// ignore
-					}
-				}
-			}
+	private static boolean reachesBoot(ModuleLayer layer) {
+		if (ModuleLayer.boot().equals(layer)) {
+			return true;
 		}
-		return new BundleWiringPrivates();
-	}
-
-	void savePrivatesCache(BundleContext context) {
-		// first remove any stale wirings
-		Set<BundleWiring> inUseWirings = getInUseBundleWirings();
-		Set<BundleWiringLastModified> lastModified = new HashSet<>();
-		for (BundleWiring wiring : inUseWirings) {
-			lastModified.add(new BundleWiringLastModified(wiring));
-		}
-		privatesCache.retainAll(lastModified);
-		File cacheFile = context.getDataFile(CACHE_FILE);
-		cacheFile.getParentFile().mkdirs();
-		ObjectOutputStream oos = null;
-		try {
-			oos = new ObjectOutputStream(new FileOutputStream(cacheFile));
-			oos.writeObject(privatesCache);
-		} catch (IOException e) {
-			activator.logError("Failed to save privates cache.", e);
-		} finally {
-			if (oos != null) {
-				try {
-					oos.close();
-				} catch (IOException e) {
-					// ignore
-				}
+		for (ModuleLayer parent : layer.parents()) {
+			if (reachesBoot(parent)) {
+				return true;
 			}
 		}
+		return false;
 	}
 
 	private Set<BundleWiring> getInUseBundleWirings() {
@@ -264,78 +543,168 @@ public class LayerFactoryImpl implements LayerFactory, WovenClassListener, Weavi
 	}
 
 	private void createNewWiringLayers() {
-		long start = System.nanoTime();
+		Span bundleLayersPhase = startPhase(Phase.BUNDLE_LAYERS);
 		layersWrite.lock();
 		try {
-			long cleanUpStart = System.nanoTime();
-			// first clean up layers that are not in use anymore
-			for (Iterator<Entry<BundleWiring, Module>> wirings = wiringToModule.entrySet().iterator(); wirings.hasNext();) {
-				Entry<BundleWiring, Module> wiringModule = wirings.next();
-				if (!wiringModule.getKey().isInUse()) {
-					// invalidate any named layers that used it
-					Collection<NamedLayerImpl> namedLayers = moduleToNamedLayers.remove(wiringModule.getValue());
-					if (namedLayers != null) {
-						for (NamedLayerImpl namedLayer : namedLayers) {
-							namedLayer.invalidate();
-							moduleToNamedLayers.forEach((k, v) -> v.remove(namedLayer));
+			Span cleanUpPhase = startPhase(Phase.CLEAN_UP);
+			Set<Configuration> removedConfigs = new HashSet<>();
+			boolean removedModules = false;
+			try {
+				expungeCollectedLayers();
+				// first clean up layers that are not in use anymore
+				for (Iterator<Entry<BundleWiring, Module>> wirings = wiringToModule.entrySet().iterator(); wirings.hasNext();) {
+					Entry<BundleWiring, Module> wiringModule = wirings.next();
+					if (!wiringModule.getKey().isInUse()) {
+						// invalidate any named layers that used it
+						Collection<NamedLayerRef> namedLayers = moduleToNamedLayers.remove(wiringModule.getValue());
+						if (namedLayers != null) {
+							for (NamedLayerRef namedLayerRef : namedLayers) {
+								unregister(namedLayerRef);
+								NamedLayerImpl namedLayer = namedLayerRef.get();
+								if (namedLayer != null) {
+									namedLayer.invalidate();
+									if (autoRebuild && isRebuildable(namedLayer.spec)) {
+										pendingRebuilds.add(namedLayer);
+									}
+								}
+							}
+						}
+						clearController(wiringModule.getValue());
+						removePlanStep(wiringModule.getKey());
+						addedReads.remove(wiringModule.getValue());
+						ClassLoader retiredLoader = wiringModule.getValue().getClassLoader();
+						footprint.retire(wiringModule.getValue(), systemModule.getClassLoader() == retiredLoader ? null : retiredLoader);
+						ModuleLayer removedLayer = wiringModule.getValue().getLayer();
+						if (removedLayer != null) {
+							removedConfigs.add(removedLayer.configuration());
 						}
+						// remove the wiring no long in use
+						wirings.remove();
+						costs.remove(wiringModule.getKey());
+						defineCounters.remove(wiringModule.getKey());
+						moduleEntries.remove(wiringModule.getKey());
+						wiringData.remove(wiringModule.getKey());
+						removeModuleName(wiringModule.getValue());
+						removedModules = true;
 					}
-					clearController(wiringModule.getValue());
-					// remove the wiring no long in use
-					wirings.remove();
 				}
+				defineCounters.removeUnused();
+				// named layer configurations resolved against removed layers are stale
+				layerConfigurations.removeParents(removedConfigs);
+			} finally {
+				cleanUpPhase.close();
 			}
-			System.out.println("Time to clean up layers: " + TimeUnit.MILLISECONDS.convert((System.nanoTime() - cleanUpStart), TimeUnit.NANOSECONDS));
-
-			long currentWiringsStart = System.nanoTime();
-			Set<BundleWiring> currentWirings = getInUseBundleWirings();
-			System.out.println("Time to get currentWirings: " + TimeUnit.MILLISECONDS.convert((System.nanoTime() - currentWiringsStart), TimeUnit.NANOSECONDS));
 
-			addToResolutionGraph(currentWirings);
+			Set<BundleWiring> currentWirings;
+			Span currentWiringsPhase = startPhase(Phase.CURRENT_WIRINGS);
+			try {
+				currentWirings = getInUseBundleWirings();
+			} finally {
+				currentWiringsPhase.close();
+			}
 
 			int numModules = wiringToModule.size();
-			long moduleCreateStart = System.nanoTime();
-			long[] classLoaderTime = new long[1];
-
-			// create modules for each node in the graph
-			if (EnumSet.of(LayerType.OneBundlePerLayerFlat, LayerType.OneBundlePerLayerWithHierarchy).contains(layerType)) {
-				graph.forEach((n) -> createModule(n, classLoaderTime));
-			}
+			// the graph is only needed when the saved plan does not cover the current wirings
+			boolean replayed = replayPlan(currentWirings);
+			if (!replayed) {
+				addToResolutionGraph(currentWirings);
 
-			// create a single layer for all bundles
-			createSingleLayer(classLoaderTime);
+				Span createModulesPhase = startPhase(Phase.CREATE_MODULES);
+				long[] classLoaderTime = new long[1];
+				try {
+					// create a single layer for all bundles that share a layer;
+					// this is done first so modules with a hierarchy can depend on them
+					createSingleLayer(classLoaderTime);
 
-			System.out.println("Time to create class loaders: " + TimeUnit.MILLISECONDS.convert(classLoaderTime[0], TimeUnit.NANOSECONDS));
-			System.out.println("Time to create modules: " + TimeUnit.MILLISECONDS.convert((System.nanoTime() - moduleCreateStart), TimeUnit.NANOSECONDS));
+					// create modules for each remaining node in the graph
+					graph.forEach((n) -> createModule(n, classLoaderTime));
+				} finally {
+					metrics.recordNanos(Phase.CLASS_LOADERS, classLoaderTime[0]);
+					createModulesPhase.close();
+				}
+			}
 
 			if (numModules != wiringToModule.size()) {
 				addReadsNest(wiringToModule);
 			}
+			if (removedModules || numModules != wiringToModule.size()) {
+				// publish the new bundle modules for named layers resolving without the lock
+				snapshot = createSnapshot(snapshot.getVersion() + 1);
+			}
+			// after a replay the graph is not built yet, but it will have a node for every bundle module
+			int nodes = replayed ? wiringToModule.size() : graph.size();
+			metrics.setCounts(nodes, wiringToModule.size(), registeredLayers.size());
 		} finally {
 			layersWrite.unlock();
-			System.out.println("Total Time to create bundle layers: " + TimeUnit.MILLISECONDS.convert((System.nanoTime() - start), TimeUnit.NANOSECONDS));
+			bundleLayersPhase.close();
 		}
 	}
 
+	/**
+	 * Starts a phase of the layer factory.  The phase is recorded in the metrics
+	 * and the flight recorder when the returned span is closed.
+	 */
+	private Span startPhase(Phase phase) {
+		long start = System.nanoTime();
+		Span event = events.phase(phase);
+		return () -> {
+			event.close();
+			metrics.record(phase, start);
+		};
+	}
+
 	private boolean createSingleLayer(long[] classLoaerCreateTime) {
 		Map<String, ModuleFinder> finders = new HashMap<>();
 		Map<String, ResolutionGraph.Node> nodes = new HashMap<>();
+		List<BundleWiring> wirings = new ArrayList<>();
 		for (ResolutionGraph.Node n : graph) {
-			if (!wiringToModule.containsKey(n.getValue())) {
+			if (!wiringToModule.containsKey(n.getValue()) && LayerType.MultiBundlePerLayerFlat.equals(layerTypes.getLayerType(n.getValue()))) {
+				Fallback fallback = wiringData.getFallback(n.getValue());
+				if (Fallback.UNNAMED.equals(fallback)) {
+					// a previous attempt could not resolve this wiring at all
+					putModule(n.getValue(), getUnnamedModule(n.getValue()));
+					addPlanStep(LayerPlan.Kind.UNNAMED, Collections.singletonMap(n.getValue(), null), Collections.emptyList());
+					continue;
+				}
+				if (Fallback.FLAT.equals(fallback)) {
+					// a previous single layer could not be resolved; this wiring gets its own flat layer
+					continue;
+				}
 				// We map using the nodeFinder name because it may be munged to fit into JPMS rules for names.
-				NodeFinder nodeFinder = new NodeFinder(activator, n, false, false);
+				long descriptorStart = System.nanoTime();
+				NodeFinder nodeFinder = new NodeFinder(activator, revisionIndex, n, false, false);
+				costs.add(n.getValue(), Cost.DESCRIPTOR, descriptorStart);
 				// note this does not allow duplicate BSNs and it is random which wins
 				finders.put(nodeFinder.name, nodeFinder);
 				nodes.put(nodeFinder.name, n);
+				wirings.add(n.getValue());
 			}
 		}
 		if (finders.isEmpty()) {
 			return false;
 		}
 		ModuleFinder aggregateFinder = new AggregateFinder(finders);
-		Configuration config = ModuleLayer.boot().configuration().resolve(aggregateFinder, ModuleFinder.of(), finders.keySet());
+		long resolveStart = System.nanoTime();
+		Configuration config;
+		try {
+			config = ModuleLayer.boot().configuration().resolve(aggregateFinder, ModuleFinder.of(), finders.keySet());
+		} catch (ResolutionException e) {
+			// it is not known which wiring caused the error, so each wiring is
+			// left to get its own flat layer, which falls back on its own if needed
+			activator.logError("Resolution error creating single layer for: " + finders.keySet(), e);
+			for (BundleWiring w : wirings) {
+				// remember this so the single layer is not attempted again for these wirings
+				wiringData.setFallback(w, Fallback.FLAT);
+			}
+			return false;
+		} finally {
+			costs.split(wirings, Cost.RESOLVE, resolveStart);
+		}
 		List<ModuleLayer> layers = Collections.singletonList(ModuleLayer.boot());
 		Controller controller = null;
+		long defineStart = System.nanoTime();
+		long loaderStart = classLoaerCreateTime[0];
+		Span defineEvent = events.defineModules(LayerType.MultiBundlePerLayerFlat.name(), finders.size());
 		try {
 			controller = ModuleLayer.defineModules(
 					config,
@@ -356,86 +725,165 @@ public class LayerFactoryImpl implements LayerFactory, WovenClassListener, Weavi
 												}
 												return w.getClassLoader();
 											} finally {
-												classLoaerCreateTime[0] += (System.nanoTime() - startTime);
+												long loaderNanos = System.nanoTime() - startTime;
+												classLoaerCreateTime[0] += loaderNanos;
+												costs.addNanos(w, Cost.CLASS_LOADER, loaderNanos);
 											}
 										}).get()
 								).get();
 					}
 			);
+			Map<BundleWiring, ModuleDescriptor> planned = new LinkedHashMap<>();
 			for (Module m :controller.layer().modules()) {
 				saveController(m, controller);
-				wiringToModule.put(nodes.get(m.getName()).getValue(), m);
+				putModule(nodes.get(m.getName()).getValue(), m);
+				planned.put(nodes.get(m.getName()).getValue(), m.getDescriptor());
 			}
+			addPlanStep(LayerPlan.Kind.SINGLE_LAYER, planned, Collections.singletonList(LayerPlan.BOOT_LAYER));
 		} catch (LayerInstantiationException e) {
 			// The most likely cause is because we have loaded classes from the 
 			// class loader before defining the module.
 			// This is possible if the jpms support fragment is installed after
 			// bundle code has been run, for example a provisioning agent.
-			// We fall back to using the unnamed module for the bundle class loader
+			// We fall back to using the unnamed module for the bundle class loader.
+			// This is not remembered as a fallback because it depends on the state
+			// of the class loaders, not on the wirings.
 			for (ResolutionGraph.Node n : nodes.values()) {
-				Module m = n.getValue().getClassLoader().getUnnamedModule();
 				if (!wiringToModule.containsKey(n.getValue())) {
+					Module m = getUnnamedModule(n.getValue());
 					activator.logError("Falling back to unnamed module for: " + n.getValue().getRevision().getSymbolicName(), e);
-					wiringToModule.put(n.getValue(), m);
+					events.unnamedFallback(n.getValue(), e);
+					putModule(n.getValue(), m);
 				}
 			}
+		} finally {
+			defineEvent.close();
+			costs.splitNanos(wirings, Cost.DEFINE_MODULES, System.nanoTime() - defineStart - (classLoaerCreateTime[0] - loaderStart));
 		}
 
 		return true;
 	}
 
 	private Module createModule(ResolutionGraph.Node n, long[] classLoaderCreateTime) {
-		boolean createHierarchy = layerType.equals(LayerType.OneBundlePerLayerWithHierarchy);
+		Module m = wiringToModule.get(n.getValue());
+		if (m != null) {
+			return m;
+		}
+		Span createModuleEvent = events.createModule(n.getValue());
+		try {
+			return defineBundleModule(n, classLoaderCreateTime);
+		} finally {
+			createModuleEvent.close();
+		}
+	}
+
+	private Module defineBundleModule(ResolutionGraph.Node n, long[] classLoaderCreateTime) {
 		Module m = wiringToModule.get(n.getValue());
 		if (m == null) {
-			NodeFinder finder = createHierarchy ? new NodeFinder(activator, n, canBuildModuleHierarchy(n), true) : new NodeFinder(activator, n, false, false);
+			Fallback fallback = wiringData.getFallback(n.getValue());
+			if (Fallback.UNNAMED.equals(fallback)) {
+				// a previous attempt could not resolve this wiring at all
+				m = getUnnamedModule(n.getValue());
+				putModule(n.getValue(), m);
+				addPlanStep(LayerPlan.Kind.UNNAMED, Collections.singletonMap(n.getValue(), null), Collections.emptyList());
+				return m;
+			}
+			// a previous hierarchy resolution error for this wiring goes straight to the flat layer
+			boolean createHierarchy = fallback == null && LayerType.OneBundlePerLayerWithHierarchy.equals(layerTypes.getLayerType(n.getValue()));
+			long descriptorStart = System.nanoTime();
+			NodeFinder finder = createHierarchy ? new NodeFinder(activator, revisionIndex, n, canBuildModuleHierarchy(n), true) : new NodeFinder(activator, revisionIndex, n, false, false);
+			costs.add(n.getValue(), Cost.DESCRIPTOR, descriptorStart);
 			Configuration config;
 			List<ModuleLayer> layers;
-			if (!createHierarchy) {
-				config = ModuleLayer.boot().configuration().resolve(finder, ModuleFinder.of(), Collections.singleton(finder.name));
-				layers = Collections.singletonList(ModuleLayer.boot());
-			} else {
-				try {
-					if (canBuildModuleHierarchy(n)) {
-						Set<Module> dependsOn = new HashSet<>();
-						for (ResolutionGraph.Node d : n.dependsOn()) {
-							dependsOn.add(createModule(d, classLoaderCreateTime));
-						}
-						List<Configuration> configs = new ArrayList<>(dependsOn.size());
-						layers = new ArrayList<>(dependsOn.size());
-						for (Module d : dependsOn) {
-							ModuleLayer l = d.getLayer();
-							if (l != null) {
-								// unnamed modules have no layers.
-								// note that a null layer should result in a resolution error below
-								layers.add(l);
+			Set<ResolutionGraph.Node> hierarchyParents = Collections.emptySet();
+			// a dependency using its unnamed module causes a resolution error that is not remembered
+			boolean unnamedDependency = false;
+			// the bundle ids of the parent layers, used by the layer plan
+			Map<ModuleLayer, Long> parentIds = new HashMap<>();
+			try {
+				if (!createHierarchy) {
+					config = resolveFlat(n, finder);
+					layers = Collections.singletonList(ModuleLayer.boot());
+				} else {
+					try {
+						if (canBuildModuleHierarchy(n)) {
+							Map<ResolutionGraph.Node, Module> dependsOn = new HashMap<>();
+							for (ResolutionGraph.Node d : n.dependsOn()) {
+								Module dm = createModule(d, classLoaderCreateTime);
+								if (dm.getLayer() != null) {
+									// unnamed modules have no layers.
+									// note that a missing layer should result in a resolution error below
+									dependsOn.put(d, dm);
+								} else {
+									unnamedDependency = true;
+								}
+							}
+							// only use the parents that are not reachable from another parent
+							hierarchyParents = graph.reduceLayerParents(dependsOn.keySet());
+							Set<ModuleLayer> parentLayers = new LinkedHashSet<>();
+							boolean bootReachable = !hierarchyParents.isEmpty();
+							for (ResolutionGraph.Node parent : hierarchyParents) {
+								ModuleLayer l = dependsOn.get(parent).getLayer();
+								parentLayers.add(l);
+								parentIds.putIfAbsent(l, parent.getValue().getBundle().getBundleId());
+								if (l.equals(systemModule.getLayer())) {
+									bootReachable &= systemLayerReachesBoot;
+								}
+							}
+							if (!bootReachable) {
+								parentLayers.add(ModuleLayer.boot());
+							}
+							layers = new ArrayList<>(parentLayers);
+							List<Configuration> configs = new ArrayList<>(parentLayers.size());
+							for (ModuleLayer l : parentLayers) {
 								configs.add(l.configuration());
 							}
-						}
 	
-						configs.add(ModuleLayer.boot().configuration());
-						layers.add(ModuleLayer.boot());
-	
-						config = Configuration.resolve(finder, configs, ModuleFinder.of(), Collections.singleton(finder.name));
-					} else {
-						String cause = n.hasSplitSources() ? " split packages" : "";
-						cause += n.hasCycleSources() ? ((cause.isEmpty() ? "" : " and") + " cycles") : "";
-						activator.logError("Could not attempt layer hierarchy for '" + finder.name + "' because of" + cause + ".", null);
-						// try without module Hierarchy
-						config = ModuleLayer.boot().configuration().resolve(finder, ModuleFinder.of(), Collections.singleton(finder.name));
+							long resolveStart = System.nanoTime();
+							try {
+								config = Configuration.resolve(finder, configs, ModuleFinder.of(), Collections.singleton(finder.name));
+							} finally {
+								costs.add(n.getValue(), Cost.RESOLVE, resolveStart);
+							}
+						} else {
+							String cause = n.hasSplitSources() ? " split packages" : "";
+							cause += n.hasCycleSources() ? ((cause.isEmpty() ? "" : " and") + " cycles") : "";
+							activator.logError("Could not attempt layer hierarchy for '" + finder.name + "' because of" + cause + ".", null);
+							// try without module Hierarchy
+							config = resolveFlat(n, finder);
+							layers = Collections.singletonList(ModuleLayer.boot());
+						}
+					} catch (ResolutionException e) {
+						activator.logError("Resolution error creating layer for: " + finder.name, e);
+						if (!unnamedDependency) {
+							// remember this so the hierarchy is not attempted again for this wiring
+							wiringData.setFallback(n.getValue(), Fallback.FLAT);
+						}
+						hierarchyParents = Collections.emptySet();
+						// well something blew up; try without module hierarchy and boot modules
+						descriptorStart = System.nanoTime();
+						finder = new NodeFinder(activator, revisionIndex, n, false, false);
+						costs.add(n.getValue(), Cost.DESCRIPTOR, descriptorStart);
+						config = resolveFlat(n, finder);
 						layers = Collections.singletonList(ModuleLayer.boot());
 					}
-				} catch (ResolutionException e) {
-					activator.logError("Resolution error creating layer for: " + finder.name, e);
-					// well something blew up; try without module hierarchy and boot modules
-					finder = new NodeFinder(activator, n, false, false);
-					config = ModuleLayer.boot().configuration().resolve(finder, ModuleFinder.of(), Collections.singleton(finder.name));
-					layers = Collections.singletonList(ModuleLayer.boot());
 				}
+			} catch (ResolutionException e) {
+				// even the flat layer cannot be resolved; use the unnamed module from now on
+				activator.logError("Falling back to unnamed module for: " + n.getValue().getRevision().getSymbolicName(), e);
+				events.unnamedFallback(n.getValue(), e);
+				wiringData.setFallback(n.getValue(), Fallback.UNNAMED);
+				m = getUnnamedModule(n.getValue());
+				putModule(n.getValue(), m);
+				addPlanStep(LayerPlan.Kind.UNNAMED, Collections.singletonMap(n.getValue(), null), Collections.emptyList());
+				return m;
 			}
 
 			final String finderName = finder.name;
 			Controller controller = null;
+			long defineStart = System.nanoTime();
+			long loaderStart = classLoaderCreateTime[0];
+			Span defineEvent = events.defineModules(finderName, 1);
 			try {
 				controller = ModuleLayer.defineModules(
 						config,
@@ -454,66 +902,469 @@ public class LayerFactoryImpl implements LayerFactory, WovenClassListener, Weavi
 													}
 													return w.getClassLoader();
 												} finally {
-													classLoaderCreateTime[0] += (System.nanoTime() - startTime);
+													long loaderNanos = System.nanoTime() - startTime;
+													classLoaderCreateTime[0] += loaderNanos;
+													costs.addNanos(w, Cost.CLASS_LOADER, loaderNanos);
 												}
 											}).get();
 						}
 				);
 				ModuleLayer layer = controller.layer();
 				m = layer.modules().iterator().next();
+				n.setLayerParents(hierarchyParents);
+				List<Long> planParents = new ArrayList<>(layers.size());
+				for (ModuleLayer l : layers) {
+					planParents.add(ModuleLayer.boot().equals(l) ? LayerPlan.BOOT_LAYER : parentIds.get(l));
+				}
+				List<Long> planLayerParents = new ArrayList<>(hierarchyParents.size());
+				for (ResolutionGraph.Node parent : hierarchyParents) {
+					planLayerParents.add(parent.getValue().getBundle().getBundleId());
+				}
+				addPlanStep(LayerPlan.Kind.MODULE, Collections.singletonMap(n.getValue(), m.getDescriptor()), planParents, planLayerParents);
 			} catch (LayerInstantiationException e) {
 				// The most likely cause is because we have loaded classes from the 
 				// class loader before defining the module.
 				// This is possible if the jpms support fragment is installed after
 				// bundle code has been run, for example a provisioning agent.
-				// We fall back to using the unnamed module for the bundle class loader
-				if (isFragment(n.getValue())) {
-					// assume this is the system.bundle fragment
-					m = systemModule.getClassLoader().getUnnamedModule();
-				} else {
-					m = n.getValue().getClassLoader().getUnnamedModule();
-				}
+				// We fall back to using the unnamed module for the bundle class loader.
+				// This is not remembered as a fallback because it depends on the state
+				// of the class loader, not on the wiring.
+				m = getUnnamedModule(n.getValue());
 				activator.logError("Falling back to unnamed module for: " + n.getValue().getRevision().getSymbolicName(), e);
+				events.unnamedFallback(n.getValue(), e);
+			} finally {
+				defineEvent.close();
+				costs.addNanos(n.getValue(), Cost.DEFINE_MODULES, System.nanoTime() - defineStart - (classLoaderCreateTime[0] - loaderStart));
 			}
 			saveController(m, controller);
-			wiringToModule.put(n.getValue(), m);
+			putModule(n.getValue(), m);
 		}
 		return m;
 	}
 
+	private void addPlanStep(LayerPlan.Kind kind, Map<BundleWiring, ModuleDescriptor> wirings, List<Long> parents) {
+		addPlanStep(kind, wirings, parents, Collections.emptyList());
+	}
+
+	private void addPlanStep(LayerPlan.Kind kind, Map<BundleWiring, ModuleDescriptor> wirings, List<Long> parents, List<Long> layerParents) {
+		List<LayerPlan.Member> members = new ArrayList<>(wirings.size());
+		for (Entry<BundleWiring, ModuleDescriptor> wiring : wirings.entrySet()) {
+			BundleWiring w = wiring.getKey();
+			ResolutionGraph.Node n = graph.getNode(w);
+			members.add(new LayerPlan.Member(w.getBundle().getBundleId(), new BundleWiringLastModified(w).getLastModifieds(), layerTypes.getLayerType(w).name(), wiring.getValue(), getSplitPackageNames(n), getCycleNames(n)));
+		}
+		LayerPlan.Step step = new LayerPlan.Step(kind, members, parents, layerParents);
+		wirings.keySet().forEach((w) -> planSteps.put(w, step));
+	}
+
+	private void removePlanStep(BundleWiring wiring) {
+		LayerPlan.Step step = planSteps.remove(wiring);
+		if (step != null && step.members.size() > 1) {
+			// the other modules of the layer can no longer be planned with this step
+			planSteps.values().removeIf((s) -> s == step);
+		}
+	}
+
+	/**
+	 * Defines the bundle modules with the plan saved by the previous start.  The plan is only
+	 * replayed when it was made for exactly the current wirings.  If the replay fails the
+	 * modules not defined yet are created from the resolution graph.
+	 * @param currentWirings the current wirings
+	 * @return true if the plan defined all the bundle modules
+	 */
+	private boolean replayPlan(Set<BundleWiring> currentWirings) {
+		LayerPlan plan = savedPlan;
+		savedPlan = null;
+		if (plan == null || wiringToModule.size() != 1) {
+			return false;
+		}
+		Map<Long, BundleWiring> wirings = new HashMap<>();
+		for (BundleWiring w : currentWirings) {
+			if (w.getBundle().getBundleId() != 0 && wirings.put(w.getBundle().getBundleId(), w) != null) {
+				// more than one wiring for a bundle is never planned
+				return false;
+			}
+		}
+		if (!plan.matches(wirings, layerTypes)) {
+			return false;
+		}
+		Span replayPhase = startPhase(Phase.REPLAY_PLAN);
+		long[] classLoaderTime = new long[1];
+		try {
+			Map<Long, ModuleLayer> layers = new HashMap<>();
+			layers.put(LayerPlan.BOOT_LAYER, ModuleLayer.boot());
+			layers.put(0L, systemModule.getLayer());
+			for (LayerPlan.Step step : plan.steps) {
+				replayStep(step, wirings, layers, classLoaderTime);
+			}
+			return true;
+		} catch (RuntimeException e) {
+			activator.logError("Could not replay the layer plan.", e);
+			return false;
+		} finally {
+			metrics.recordNanos(Phase.CLASS_LOADERS, classLoaderTime[0]);
+			replayPhase.close();
+		}
+	}
+
+	private void replayStep(LayerPlan.Step step, Map<Long, BundleWiring> wirings, Map<Long, ModuleLayer> layers, long[] classLoaderTime) {
+		if (LayerPlan.Kind.UNNAMED.equals(step.kind)) {
+			for (LayerPlan.Member member : step.members) {
+				BundleWiring w = wirings.get(member.bundleId);
+				putModule(w, getUnnamedModule(w), Collections.emptyList(), member.splitPackages, member.cycles);
+				planSteps.put(w, step);
+			}
+			return;
+		}
+		Map<String, ModuleFinder> finders = new HashMap<>();
+		Map<String, BundleWiring> named = new HashMap<>();
+		Map<BundleWiring, LayerPlan.Member> members = new LinkedHashMap<>();
+		for (LayerPlan.Member member : step.members) {
+			NodeFinder finder = new NodeFinder(member.descriptor, wirings.get(member.bundleId));
+			finders.put(finder.name, finder);
+			named.put(finder.name, wirings.get(member.bundleId));
+			members.put(wirings.get(member.bundleId), member);
+		}
+		Set<BundleWiring> layerParents = new LinkedHashSet<>();
+		List<String> layerParentNames = new ArrayList<>(step.layerParents.size());
+		for (Long parentId : step.layerParents) {
+			BundleWiring parent = parentId == Constants.SYSTEM_BUNDLE_ID ? context.getBundle(Constants.SYSTEM_BUNDLE_ID).adapt(BundleWiring.class) : wirings.get(parentId);
+			layerParents.add(parent);
+			layerParentNames.add(parent.getRevision().getSymbolicName());
+		}
+		List<ModuleLayer> parents = new ArrayList<>(step.parents.size());
+		List<Configuration> configs = new ArrayList<>(step.parents.size());
+		for (Long parentId : step.parents) {
+			ModuleLayer parent = layers.get(parentId);
+			if (parent == null) {
+				throw new IllegalStateException("No layer for bundle: " + parentId);
+			}
+			parents.add(parent);
+			configs.add(parent.configuration());
+		}
+		// defineModules needs a configuration, but it is resolved only from the planned descriptors
+		long resolveStart = System.nanoTime();
+		Configuration config = Configuration.resolve(new AggregateFinder(finders), configs, ModuleFinder.of(), finders.keySet());
+		costs.split(members.keySet(), Cost.RESOLVE, resolveStart);
+		Controller controller;
+		long defineStart = System.nanoTime();
+		long loaderStart = classLoaderTime[0];
+		Span defineEvent = events.defineModules(step.kind.name(), finders.size());
+		try {
+			controller = ModuleLayer.defineModules(config, parents, (name) -> {
+				BundleWiring w = named.get(name);
+				long startTime = System.nanoTime();
+				try {
+					// assume fragments are for the system.bundle
+					return isFragment(w) ? systemModule.getClassLoader() : w.getClassLoader();
+				} finally {
+					long loaderNanos = System.nanoTime() - startTime;
+					classLoaderTime[0] += loaderNanos;
+					costs.addNanos(w, Cost.CLASS_LOADER, loaderNanos);
+				}
+			});
+		} finally {
+			defineEvent.close();
+			costs.splitNanos(members.keySet(), Cost.DEFINE_MODULES, System.nanoTime() - defineStart - (classLoaderTime[0] - loaderStart));
+		}
+		for (Module m : controller.layer().modules()) {
+			BundleWiring w = named.get(m.getName());
+			LayerPlan.Member member = members.get(w);
+			saveController(m, controller);
+			// the graph sets the layer parents on the node once it is built
+			graph.setLayerParents(w, layerParents);
+			putModule(w, m, layerParentNames, member.splitPackages, member.cycles);
+			planSteps.put(w, step);
+			layers.put(w.getBundle().getBundleId(), m.getLayer());
+		}
+	}
+
+	private void savePlan() {
+		File planFile = context.getDataFile(LAYER_PLAN_FILE);
+		if (planFile == null) {
+			return;
+		}
+		LayerPlan plan = null;
+		layersRead.lock();
+		try {
+			// only a plan for every bundle module can be replayed
+			if (planSteps.size() == wiringToModule.size() - 1) {
+				plan = new LayerPlan(new ArrayList<>(new LinkedHashSet<>(planSteps.values())));
+			}
+		} finally {
+			layersRead.unlock();
+		}
+		if (plan == null) {
+			planFile.delete();
+			return;
+		}
+		try {
+			plan.save(planFile);
+		} catch (IOException e) {
+			activator.logError("Could not save the layer plan.", e);
+			planFile.delete();
+		}
+	}
+
+	private Configuration resolveFlat(ResolutionGraph.Node n, NodeFinder finder) {
+		long start = System.nanoTime();
+		try {
+			return ModuleLayer.boot().configuration().resolve(finder, ModuleFinder.of(), Collections.singleton(finder.name));
+		} finally {
+			costs.add(n.getValue(), Cost.RESOLVE, start);
+		}
+	}
+
+	private void putModule(BundleWiring wiring, Module module) {
+		ResolutionGraph.Node n = graph.getNode(wiring);
+		putModule(wiring, module, getLayerParentNames(n), getSplitPackageNames(n), getCycleNames(n));
+	}
+
+	private void putModule(BundleWiring wiring, Module module, List<String> layerParents, List<String> splitPackages, List<String> cycles) {
+		defineCounters.put(wiring, module);
+		moduleEntries.put(wiring, createEntry(wiring, module, layerParents, splitPackages, cycles));
+		String fallback = getFallbackName(wiring, module);
+		if (fallback != null) {
+			costs.setFallback(wiring, fallback);
+		}
+		Module previous = wiringToModule.put(wiring, module);
+		if (previous != null) {
+			removeModuleName(previous);
+		}
+		if (module.isNamed()) {
+			modulesByName.computeIfAbsent(module.getName(), (n) -> new HashSet<>()).add(module);
+		}
+	}
+
+	private String getFallbackName(BundleWiring wiring, Module module) {
+		if (!module.isNamed()) {
+			return Fallback.UNNAMED.name();
+		}
+		return Fallback.FLAT.equals(wiringData.getFallback(wiring)) ? Fallback.FLAT.name() : null;
+	}
+
+	/**
+	 * Creates the inspection entry of a bundle module when it is put.  The read
+	 * edges of the entry only count the reads of its configuration.
+	 */
+	private LayerInspection.BundleEntry createEntry(BundleWiring wiring, Module module, List<String> layerParents, List<String> splitPackages, List<String> cycles) {
+		ModuleLayer layer = module.getLayer();
+		int readEdges = 0;
+		if (layer != null) {
+			readEdges = layer.configuration().findModule(module.getName()).map((r) -> r.reads().size()).orElse(0);
+		}
+		return new LayerInspection.BundleEntry(
+				wiring.getBundle().getBundleId(),
+				wiring.getRevision().getSymbolicName(),
+				module.isNamed() ? module.getName() : null,
+				layerTypes.getLayerType(wiring).name(),
+				layerParents,
+				layer == null ? 0 : layer.modules().size(),
+				getFallbackName(wiring, module),
+				splitPackages,
+				cycles,
+				readEdges,
+				controllers.containsKey(module));
+	}
+
+	private static List<String> getLayerParentNames(ResolutionGraph.Node n) {
+		List<String> layerParents = new ArrayList<>();
+		if (n != null) {
+			for (ResolutionGraph.Node parent : n.getLayerParents()) {
+				layerParents.add(parent.getValue().getRevision().getSymbolicName());
+			}
+		}
+		return layerParents;
+	}
+
+	private static List<String> getSplitPackageNames(ResolutionGraph.Node n) {
+		List<String> splitPackages = new ArrayList<>();
+		if (n != null && n.hasSplitSources()) {
+			for (BundlePackage p : n.getSplitPackages()) {
+				splitPackages.add(p.toString());
+			}
+		}
+		return splitPackages;
+	}
+
+	private static List<String> getCycleNames(ResolutionGraph.Node n) {
+		List<String> cycles = new ArrayList<>();
+		if (n != null && n.hasCycleSources()) {
+			for (ResolutionGraph.Node d : n.getCycleDependencies()) {
+				cycles.add(d.getValue().getRevision().getSymbolicName());
+			}
+		}
+		return cycles;
+	}
+
+	/**
+	 * Publishes the bundle modules for named layers resolving and for inspecting
+	 * the layers without the lock.
+	 */
+	private BundleLayerSnapshot createSnapshot(long version) {
+		Set<Module> current = new HashSet<>(wiringToModule.values());
+		int staleControllers = 0;
+		for (Module m : controllers.keySet()) {
+			if (!current.contains(m)) {
+				staleControllers++;
+			}
+		}
+		int staleNamedLayerEntries = 0;
+		for (Entry<Module, Collection<NamedLayerRef>> moduleNamedLayers : moduleToNamedLayers.entrySet()) {
+			if (!current.contains(moduleNamedLayers.getKey())) {
+				staleNamedLayerEntries += moduleNamedLayers.getValue().size();
+			}
+		}
+		return new BundleLayerSnapshot(version, modulesByName, wiringToModule, moduleEntries, addedReads, controllers.size(), staleControllers, staleNamedLayerEntries);
+	}
+
+	private List<Footprint> getFootprints() {
+		List<Footprint> result = new ArrayList<>();
+		for (LayerInspection.BundleEntry entry : getInspection().bundles) {
+			String name = entry.moduleName == null ? entry.symbolicName : entry.moduleName;
+			result.add(new LayerFootprint.Entry(name, false, entry.layerModules > 0 ? 1 : 0, entry.hasController ? 1 : 0, entry.readEdges));
+		}
+		for (NamedLayerRef ref : registeredLayers) {
+			NamedLayerImpl namedLayer = ref.get();
+			ModuleLayer layer = namedLayer == null ? null : namedLayer.layer;
+			if (layer != null) {
+				result.add(new LayerFootprint.Entry(namedLayer.getName(), true, 1, 0, getReadEdges(layer.configuration())));
+			}
+		}
+		return result;
+	}
+
+	private static long getReadEdges(Configuration config) {
+		long readEdges = 0;
+		for (ResolvedModule resolved : config.modules()) {
+			readEdges += resolved.reads().size();
+		}
+		return readEdges;
+	}
+
+	private MemoryStats getMemoryStats() {
+		LayerInspection current = getInspection();
+		long readEdges = 0;
+		for (LayerInspection.BundleEntry entry : current.bundles) {
+			readEdges += entry.readEdges;
+		}
+		int namedLayerConfigurations = 0;
+		for (NamedLayerRef ref : registeredLayers) {
+			NamedLayerImpl namedLayer = ref.get();
+			ModuleLayer layer = namedLayer == null ? null : namedLayer.layer;
+			if (layer != null) {
+				namedLayerConfigurations++;
+				readEdges += getReadEdges(layer.configuration());
+			}
+		}
+		return new LayerFootprint.Stats(
+				current.configurations + namedLayerConfigurations,
+				layerConfigurations.size(),
+				current.controllers,
+				readEdges,
+				footprint.getRetainedModules(),
+				footprint.getRetainedClassLoaders(),
+				current.staleControllers,
+				current.staleNamedLayerEntries);
+	}
+
+	/**
+	 * Returns the inspection of the current bundle layers.  It is created from the
+	 * published snapshot the first time it is asked for after the bundle modules
+	 * change, so it never takes the layers lock.
+	 */
+	LayerInspection getInspection() {
+		BundleLayerSnapshot layers = snapshot;
+		LayerInspection current = inspection;
+		if (current == null || current.version != layers.getVersion()) {
+			current = LayerInspection.create(layers);
+			inspection = current;
+		}
+		return current;
+	}
+
+	Collection<NamedLayerRef> getNamedLayerRefs() {
+		return Collections.unmodifiableCollection(registeredLayers);
+	}
+
+	private void removeModuleName(Module module) {
+		if (module.isNamed()) {
+			Set<Module> named = modulesByName.get(module.getName());
+			if (named != null) {
+				named.remove(module);
+				if (named.isEmpty()) {
+					modulesByName.remove(module.getName());
+				}
+			}
+		}
+	}
+
+	private boolean isCurrent(BundleLayerSnapshot layers, Set<Module> dependsOn) {
+		if (layers == snapshot) {
+			return true;
+		}
+		// the bundle layers changed; still current if all the modules depended on are still in use
+		for (Module m : dependsOn) {
+			Set<Module> named = modulesByName.get(m.getName());
+			if (named == null || !named.contains(m)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Module getUnnamedModule(BundleWiring wiring) {
+		if (isFragment(wiring)) {
+			// assume this is the system.bundle fragment
+			return systemModule.getClassLoader().getUnnamedModule();
+		}
+		return wiring.getClassLoader().getUnnamedModule();
+	}
+
 	private void saveController(Module module, Controller controller) {
-		controllers.put(module, controller);
+		if (controller != null) {
+			controllers.put(module, controller);
+		}
 	}
 
 	private void clearController(Module module) {
 		controllers.remove(module);
 	}
 
-	private void addReads(Module wantsRead, Collection<Module> toTargets) {
+	private int addReads(Module wantsRead, Collection<Module> toTargets) {
 		Controller controller = controllers.get(wantsRead);
 		if (controller != null) {
 			for (Module toTarget : toTargets) {
 				controller.addReads(wantsRead, toTarget);
 			}
+			return toTargets.size();
 		}
+		return 0;
 	}
 
 	private void addReadsNest(Map<BundleWiring, Module> wiringToModule) {
-		long addReadsNestStart = System.nanoTime();
-		Set<Module> bootModules = ModuleLayer.boot().modules();
-		Collection<Module> allBundleModules = wiringToModule.values();
-		// Not checking for existing edges for simplicity.
-		for (Module module : allBundleModules) {
-			if (!systemModule.equals(module)) {
-				// First add reads to all boot modules.
-				addReads(module, bootModules);
-				// Now ensure bidirectional read of all bundle modules.
-				addReads(module, allBundleModules);
-				// Add read to the system.bundle module.
-				addReads(module, Collections.singleton(systemModule));
+		Span addReadsNestPhase = startPhase(Phase.ADD_READS_NEST);
+		try {
+			Set<Module> bootModules = ModuleLayer.boot().modules();
+			Collection<Module> allBundleModules = wiringToModule.values();
+			// Not checking for existing edges for simplicity.
+			addedReads.clear();
+			for (Module module : allBundleModules) {
+				if (!systemModule.equals(module)) {
+					// First add reads to all boot modules.
+					int reads = addReads(module, bootModules);
+					// Now ensure bidirectional read of all bundle modules.
+					reads += addReads(module, allBundleModules);
+					// Add read to the system.bundle module.
+					reads += addReads(module, Collections.singleton(systemModule));
+					if (reads > 0) {
+						addedReads.put(module, reads);
+					}
+				}
 			}
+		} finally {
+			addReadsNestPhase.close();
 		}
-		System.out.println("Time to addReadsNest: " + TimeUnit.MILLISECONDS.convert((System.nanoTime() - addReadsNestStart), TimeUnit.NANOSECONDS));
 	}
 
 	static boolean canBuildModuleHierarchy(ResolutionGraph.Node n) {
@@ -521,24 +1372,34 @@ public class LayerFactoryImpl implements LayerFactory, WovenClassListener, Weavi
 	}
 
 	private void addToResolutionGraph(Set<BundleWiring> currentWirings) {
-		long startAddToGraph = System.nanoTime();
-		currentWirings.forEach((w) -> addToGraph(w));
-		System.out.println("Time addToGraph: " + TimeUnit.MILLISECONDS.convert((System.nanoTime() - startAddToGraph), TimeUnit.NANOSECONDS));
-
-		long startAddWires = System.nanoTime();
-		for (Iterator<ResolutionGraph.Node> nodes = graph.iterator(); nodes.hasNext();) {
-			ResolutionGraph.Node n = nodes.next();
-			if (!currentWirings.contains(n.getValue()) && n.getValue().getBundle().getBundleId() != 0) {
-				nodes.remove();
-			} else {
-				addWires(n);
+		Span addToGraphPhase = startPhase(Phase.ADD_TO_GRAPH);
+		try {
+			currentWirings.forEach((w) -> addToGraph(w));
+		} finally {
+			addToGraphPhase.close();
+		}
+
+		Span addWiresPhase = startPhase(Phase.ADD_WIRES);
+		try {
+			for (Iterator<ResolutionGraph.Node> nodes = graph.iterator(); nodes.hasNext();) {
+				ResolutionGraph.Node n = nodes.next();
+				if (!currentWirings.contains(n.getValue()) && n.getValue().getBundle().getBundleId() != 0) {
+					nodes.remove();
+					costs.remove(n.getValue());
+				} else {
+					addWires(n);
+				}
 			}
+		} finally {
+			addWiresPhase.close();
 		}
-		System.out.println("Time addWires: " + TimeUnit.MILLISECONDS.convert((System.nanoTime() - startAddWires), TimeUnit.NANOSECONDS));
 
-		long startPopulateSources = System.nanoTime();
-		graph.populateSources();
-		System.out.println("Time populateSources: " + TimeUnit.MILLISECONDS.convert((System.nanoTime() - startPopulateSources), TimeUnit.NANOSECONDS));
+		Span populateSourcesPhase = startPhase(Phase.POPULATE_SOURCES);
+		try {
+			graph.populateSources();
+		} finally {
+			populateSourcesPhase.close();
+		}
 	}
 
 	private void addWires(ResolutionGraph.Node tail) {
@@ -585,136 +1446,515 @@ public class LayerFactoryImpl implements LayerFactory, WovenClassListener, Weavi
 		}
 	}
 
+	/**
+	 * Returns the boot module that provides the capability.
+	 * @param capability the capability
+	 * @return the boot module, or null if the capability is not from a boot module
+	 */
+	static Module getBootModule(BundleCapability capability) {
+		Map<String, Object> attrs = capability.getAttributes();
+		if (attrs.get(BOOT_JPMS_MODULE) == null) {
+			return null;
+		}
+		Object moduleName = attrs.get(BOOT_JPMS_MODULE_NAME);
+		if (moduleName == null) {
+			// one bundle for each boot module
+			moduleName = capability.getRevision().getSymbolicName();
+		}
+		return ModuleLayer.boot().findModule(moduleName.toString()).orElse(null);
+	}
+
 	private void addToGraph(BundleWiring w) {
 		if (graph.getNode(w) == null) {
-			Set<BundlePackage> exports = getExports(w);
-			Set<BundlePackage> substitutes = getSubstitutes(w, exports);
-			Set<BundlePackage> privates = privatesCache.getPrivates(w, exports);
-			graph.addNode(w, exports, substitutes, privates);
+			RevisionIndex.Entry entry = revisionIndex.getEntry(w);
+			long privatesStart = System.nanoTime();
+			Set<BundlePackage> privates = wiringData.getPrivates(w, entry.getExports());
+			costs.add(w, Cost.PRIVATES_SCAN, privatesStart);
+			graph.addNode(w, entry.getExports(), entry.getSubstitutes(), privates);
 		}
 	}
 
-	private static Set<BundlePackage> getSubstitutes(BundleWiring w, Set<BundlePackage> exports) {
-		Set<BundlePackage> results = new HashSet<>();
-		for (BundleCapability export : w.getRevision().getDeclaredCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
-			results.add(BundlePackage.createSimplePackage((String) export.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE)));
-		}
-		for (BundleWire hostWire : w.getProvidedWires(HostNamespace.HOST_NAMESPACE)) {
-			for (BundleCapability export : hostWire.getRequirer().getDeclaredCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
-				results.add(BundlePackage.createSimplePackage((String) export.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE)));
-			}
+	static boolean isFragment(BundleWiring wiring) {
+		return (wiring.getRevision().getTypes() & BundleRevision.TYPE_FRAGMENT) != 0;
+	}
+
+	private List<NamedLayer> createLayers(List<LayerSpec> specs, BooleanSupplier cancelled) {
+		Span namedLayersPhase = startPhase(Phase.NAMED_LAYERS);
+		try {
+			return doCreateLayers(specs, cancelled);
+		} finally {
+			namedLayersPhase.close();
 		}
-		results.removeAll(exports);
-		return results;
 	}
 
-	private Set<BundlePackage> getExports(BundleWiring wiring) {
-		Set<BundlePackage> results = new HashSet<>();
-		if (isFragment(wiring)) {
-			Set<String> systemPackages = systemModule.getDescriptor().packages();
-			// assume this is for the system.bundle
-			BundleWiring systemWiring = wiring.getRequiredWires(HostNamespace.HOST_NAMESPACE).get(0).getProviderWiring();
-			for (BundleCapability export : systemWiring.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
-				if (!systemPackages.contains(export.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE))) {
-					if (export.getRevision().equals(wiring.getRevision())) {
-						results.add(BundlePackage.createExportPackage(export));
+	private List<NamedLayer> doCreateLayers(List<LayerSpec> specs, BooleanSupplier cancelled) {
+		List<LayerSpec> ordered = orderSpecs(specs);
+		List<Set<Path>> pathSets = new ArrayList<>(ordered.size());
+		for (LayerSpec spec : ordered) {
+			pathSets.add(spec.getPaths());
+		}
+		// scan the union of the module paths once
+		List<NamedLayerConfigurations.ModulePath> modulePaths = layerConfigurations.getModulePaths(pathSets);
+		Map<LayerSpec, SharedKey> sharedKeys = getSharedKeys(ordered, modulePaths);
+		Map<LayerSpec, NamedLayer> created = new HashMap<>();
+		if (!sharedKeys.isEmpty()) {
+			layersWrite.lock();
+			try {
+				// invalidate shared layers that use bundles which are no longer in use
+				createNewWiringLayers();
+				for (int i = ordered.size() - 1; i >= 0; i--) {
+					LayerSpec spec = ordered.get(i);
+					NamedLayer existing = acquireSharedLayer(sharedKeys.get(spec), spec.getName());
+					if (existing != null) {
+						created.put(spec, existing);
+						ordered.remove(i);
+						modulePaths.remove(i);
 					}
 				}
+			} finally {
+				layersWrite.unlock();
+			}
+		}
+		for (int attempt = 1; !ordered.isEmpty(); attempt++) {
+			// After too many conflicts with rebuilds of the bundle layers hold the lock
+			// for the whole operation to guarantee progress.
+			boolean locked = attempt > MAX_OPTIMISTIC_ATTEMPTS;
+			if (locked) {
+				layersWrite.lock();
 			}
-		} else {
-			for (BundleCapability export : wiring.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
-				results.add(BundlePackage.createExportPackage(export));
+			try {
+				checkCancelled(cancelled);
+				createNewWiringLayers();
+				// resolve against a snapshot of the bundle layers without holding the lock
+				BundleLayerSnapshot layersSnapshot = snapshot;
+				Map<LayerSpec, PendingLayer> pending = new LinkedHashMap<>();
+				Set<Module> reachable = new HashSet<>();
+				for (int i = 0; i < ordered.size(); i++) {
+					LayerSpec spec = ordered.get(i);
+					List<PendingLayer> parents = new ArrayList<>(spec.getParents().size());
+					for (LayerSpec parentSpec : spec.getParents()) {
+						parents.add(pending.get(parentSpec));
+					}
+					PendingLayer p = new PendingLayer(spec, modulePaths.get(i), parents, layersSnapshot);
+					pending.put(spec, p);
+					reachable.addAll(p.reachable);
+				}
+				schedule(pending.values(), (p) -> true, (p) -> p.resolve(layerConfigurations, systemModule), locked, cancelled);
+				schedule(pending.values(), (p) -> p.defineEarly, (p) -> p.define(systemModule, events), locked, cancelled);
+				layersWrite.lock();
+				try {
+					if (isCurrent(layersSnapshot, reachable)) {
+						checkCancelled(cancelled);
+						for (PendingLayer p : pending.values()) {
+							SharedKey sharedKey = sharedKeys.get(p.spec);
+							NamedLayer existing = acquireSharedLayer(sharedKey, p.spec.getName());
+							if (existing != null) {
+								// another request created the same layer first; use it instead
+								created.put(p.spec, existing);
+								continue;
+							}
+							if (p.layer == null) {
+								p.define(systemModule, events);
+							}
+							NamedLayerImpl result = new NamedLayerImpl(p.layer, p.spec, sharedKey);
+							result.registration = new NamedLayerRef(result, p.reachable, collectedLayers);
+							registeredLayers.add(result.registration);
+							events.namedLayerCreated(result.getName(), result.getId(), p.spec.getLoaderType().name(), p.layer.modules().size());
+							for (Module m : p.reachable) {
+								moduleToNamedLayers.computeIfAbsent(m, (k) -> new HashSet<>()).add(result.registration);
+							}
+							if (sharedKey != null) {
+								sharedLayers.put(sharedKey, result.registration);
+								created.put(p.spec, new SharedNamedLayer(result, p.spec.getName()));
+							} else {
+								created.put(p.spec, result);
+							}
+						}
+						metrics.setNamedLayerCount(registeredLayers.size());
+						break;
+					}
+				} finally {
+					layersWrite.unlock();
+				}
+				// a rebuild removed bundle modules used by the layers; try again
+			} finally {
+				if (locked) {
+					layersWrite.unlock();
+				}
 			}
 		}
+		List<NamedLayer> results = new ArrayList<>(specs.size());
+		for (LayerSpec spec : specs) {
+			results.add(created.get(spec));
+		}
 		return results;
 	}
 
-	private static boolean isFragment(BundleWiring wiring) {
-		return (wiring.getRevision().getTypes() & BundleRevision.TYPE_FRAGMENT) != 0;
+	/**
+	 * Returns the keys used to share the layers of the specifications.  Layers with mapped
+	 * loaders belong to the caller and are never shared.  Layers with parent layers and the
+	 * parents of other layers in the same request are not shared either.
+	 */
+	private Map<LayerSpec, SharedKey> getSharedKeys(List<LayerSpec> ordered, List<NamedLayerConfigurations.ModulePath> modulePaths) {
+		if (!shareLayers) {
+			return Collections.emptyMap();
+		}
+		Set<LayerSpec> parentSpecs = new HashSet<>();
+		for (LayerSpec spec : ordered) {
+			parentSpecs.addAll(spec.getParents());
+		}
+		Map<LayerSpec, SharedKey> result = new HashMap<>();
+		for (int i = 0; i < ordered.size(); i++) {
+			LayerSpec spec = ordered.get(i);
+			if (!LoaderType.MappedLoaders.equals(spec.getLoaderType()) && spec.getParents().isEmpty() && !parentSpecs.contains(spec)) {
+				result.put(spec, new SharedKey(spec, modulePaths.get(i).getFingerprint()));
+			}
+		}
+		return result;
+	}
+
+	private NamedLayer acquireSharedLayer(SharedKey key, String name) {
+		if (key == null) {
+			return null;
+		}
+		NamedLayerRef existingRef = sharedLayers.get(key);
+		NamedLayerImpl existing = existingRef == null ? null : existingRef.get();
+		if (existing == null || !existing.isValid()) {
+			return null;
+		}
+		existing.refs++;
+		return new SharedNamedLayer(existing, name);
+	}
+
+	void release(NamedLayerImpl namedLayer) {
+		layersWrite.lock();
+		try {
+			if (namedLayer.refs > 0 && --namedLayer.refs == 0) {
+				namedLayer.isValid.set(false);
+				unregister(namedLayer.registration);
+				// nothing in the factory references the JPMS layer anymore so
+				// its class loaders can be collected even if the caller keeps
+				// a reference to the closed named layer
+				namedLayer.layer = null;
+			}
+		} finally {
+			layersWrite.unlock();
+		}
+	}
+
+	private void unregister(NamedLayerRef namedLayerRef) {
+		for (Module m : namedLayerRef.modules) {
+			Collection<NamedLayerRef> moduleNamedLayers = moduleToNamedLayers.get(m);
+			if (moduleNamedLayers != null && moduleNamedLayers.remove(namedLayerRef) && moduleNamedLayers.isEmpty()) {
+				moduleToNamedLayers.remove(m);
+			}
+		}
+		if (namedLayerRef.sharedKey != null) {
+			sharedLayers.remove(namedLayerRef.sharedKey, namedLayerRef);
+		}
+		if (registeredLayers.remove(namedLayerRef)) {
+			metrics.setNamedLayerCount(registeredLayers.size());
+		}
+	}
+
+	private void expungeCollectedLayers() {
+		for (Reference<? extends NamedLayerImpl> collected = collectedLayers.poll(); collected != null; collected = collectedLayers.poll()) {
+			unregister((NamedLayerRef) collected);
+		}
+	}
+
+	/**
+	 * Layers with mapped loaders are not rebuilt because the caller owned class
+	 * loaders cannot have the same modules defined again.  Layers with parent
+	 * named layers are not rebuilt because the parents are replaced independently.
+	 */
+	private static boolean isRebuildable(LayerSpec spec) {
+		return !LoaderType.MappedLoaders.equals(spec.getLoaderType()) && spec.getParents().isEmpty();
 	}
 
-	private NamedLayer createLayer(LoaderType type, String name, Set<Path> paths, Set<String> roots, ClassLoader parent, Function<String, ClassLoader> mappedLoaders) {
-		ModuleFinder finder = ModuleFinder.of(paths.toArray(new Path[0]));
-		Set<String> required = new HashSet<>();
-		finder.findAll().forEach(
-				(m) -> m.descriptor().requires().forEach(
-						(r) -> required.add(r.name())));
+	private void rebuildInvalidLayers() {
+		List<NamedLayerImpl> invalidated = new ArrayList<>();
 		layersWrite.lock();
 		try {
+			// only rebuild once the refresh has resolved the new bundle wirings
 			createNewWiringLayers();
-			// TODO not an optimized lookup here for the requires
-			List<Module> dependsOn = new ArrayList<>();
-			for (Module m : wiringToModule.values()) {
-				if (required.contains(m.getName())) {
-					dependsOn.add(m);
+			invalidated.addAll(pendingRebuilds);
+			pendingRebuilds.clear();
+			if (invalidated.isEmpty()) {
+				return;
+			}
+		} finally {
+			layersWrite.unlock();
+		}
+		try {
+			getAsyncExecutor().execute(() -> rebuild(invalidated));
+		} catch (RejectedExecutionException e) {
+			// the factory is shutting down
+		}
+	}
+
+	private void rebuild(List<NamedLayerImpl> invalidated) {
+		List<LayerSpec> specs = new ArrayList<>(invalidated.size());
+		for (NamedLayerImpl namedLayer : invalidated) {
+			specs.add(namedLayer.spec);
+		}
+		List<NamedLayer> successors;
+		try {
+			successors = createLayers(specs, () -> false);
+		} catch (RuntimeException e) {
+			// rebuild the layers that can still be resolved one at a time
+			successors = new ArrayList<>(specs.size());
+			for (LayerSpec spec : specs) {
+				try {
+					successors.add(createLayers(Collections.singletonList(spec), () -> false).get(0));
+				} catch (RuntimeException specError) {
+					activator.logError("Could not rebuild layer: " + spec.getName(), specError);
+					successors.add(null);
 				}
 			}
-			List<Configuration> configs = new ArrayList<>(dependsOn.size() + 1);
-			List<ModuleLayer> layers = new ArrayList<>(dependsOn.size() + 1);
-			for (Module d : dependsOn) {
-				ModuleLayer l = d.getLayer();
-				layers.add(l);
-				configs.add(l.configuration());
+		}
+		for (int i = 0; i < invalidated.size(); i++) {
+			NamedLayerImpl namedLayer = invalidated.get(i);
+			NamedLayer successor = successors.get(i);
+			if (successor == null) {
+				continue;
 			}
-			// always add the system layer/configuration which give access to boot
-			layers.add(systemModule.getLayer());
-			configs.add(systemModule.getLayer().configuration());
+			layersWrite.lock();
+			try {
+				if (successor instanceof SharedNamedLayer) {
+					// each open handle of the invalid layer owns a reference to the successor
+					NamedLayerImpl shared = ((SharedNamedLayer) successor).shared;
+					shared.refs += namedLayer.refs;
+					release(shared);
+					namedLayer.successor = shared;
+				} else {
+					namedLayer.successor = (NamedLayerImpl) successor;
+				}
+			} finally {
+				layersWrite.unlock();
+			}
+			publish(namedLayer, Event.REPLACED);
+		}
+	}
 
-			Configuration config = Configuration.resolveAndBind(ModuleFinder.of(), configs, finder, roots);
-			ModuleLayer layer;
-			switch (type) {
-				case OneLoader:
-					layer = ModuleLayer.defineModulesWithOneLoader(config, layers, parent).layer();
-					break;
-				case ManyLoaders :
-					layer = ModuleLayer.defineModulesWithManyLoaders(config, layers, parent).layer();
-					break;
-				case MappedLoaders :
-					layer = ModuleLayer.defineModules(config, layers, mappedLoaders).layer();
-					break;
-				default:
-					throw new IllegalArgumentException(type.toString());
+	private void publish(NamedLayerImpl namedLayer, Event event) {
+		if (namedLayer.consumers.isEmpty()) {
+			return;
+		}
+		try {
+			// consumers are called without holding any locks of the factory
+			eventExecutor.execute(() -> {
+				for (Consumer<Event> consumer : namedLayer.consumers) {
+					try {
+						consumer.accept(event);
+					} catch (Throwable t) {
+						activator.logError("Error delivering " + event + " event for layer: " + namedLayer.getName(), t);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the factory is shutting down
+		}
+	}
+
+	/**
+	 * Orders the specifications, and all their parents, so that parents come before their children.
+	 */
+	private static List<LayerSpec> orderSpecs(List<LayerSpec> specs) {
+		Set<LayerSpec> ordered = new LinkedHashSet<>();
+		Set<LayerSpec> visiting = new HashSet<>();
+		for (LayerSpec spec : specs) {
+			orderSpec(spec, ordered, visiting);
+		}
+		return new ArrayList<>(ordered);
+	}
+
+	private static void orderSpec(LayerSpec spec, Set<LayerSpec> ordered, Set<LayerSpec> visiting) {
+		if (ordered.contains(spec)) {
+			return;
+		}
+		if (!visiting.add(spec)) {
+			throw new IllegalArgumentException("The layer specification parents have a cycle: " + spec);
+		}
+		for (LayerSpec parent : spec.getParents()) {
+			orderSpec(parent, ordered, visiting);
+		}
+		visiting.remove(spec);
+		ordered.add(spec);
+	}
+
+	/**
+	 * Runs the action for each of the pending layers that match the filter.  Layers that
+	 * do not depend on each other run in parallel on the async executor, each layer runs
+	 * after its parents.  The layers run one after the other in the calling thread when it
+	 * holds the layers lock or is a thread of the async executor, because waiting for the
+	 * executor could then deadlock.
+	 * @param pending the pending layers, parents first
+	 * @param locked true if the calling thread holds the layers lock
+	 */
+	private void schedule(Collection<PendingLayer> pending, Predicate<PendingLayer> filter, Consumer<PendingLayer> action, boolean locked, BooleanSupplier cancelled) {
+		if (locked || pending.size() == 1 || IN_ASYNC_THREAD.get()) {
+			for (PendingLayer p : pending) {
+				if (filter.test(p)) {
+					checkCancelled(cancelled);
+					action.accept(p);
+				}
 			}
-			NamedLayerImpl result = new NamedLayerImpl(layer, name);
-			for (Module m : dependsOn) {
-				moduleToNamedLayers.computeIfAbsent(m, (k) -> new ArrayList<>()).add(result);
+			return;
+		}
+		Executor executor = getAsyncExecutor();
+		Map<PendingLayer, CompletableFuture<Void>> tasks = new HashMap<>();
+		for (PendingLayer p : pending) {
+			if (filter.test(p)) {
+				CompletableFuture<?>[] parentTasks = p.parents.stream().map(tasks::get).filter(Objects::nonNull).toArray(CompletableFuture<?>[]::new);
+				tasks.put(p, CompletableFuture.allOf(parentTasks).thenRunAsync(() -> {
+					checkCancelled(cancelled);
+					action.accept(p);
+				}, executor));
 			}
-			return result;
-		} finally {
-			layersWrite.unlock();
 		}
+		try {
+			CompletableFuture.allOf(tasks.values().toArray(new CompletableFuture<?>[0])).join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	private static void checkCancelled(BooleanSupplier cancelled) {
+		if (cancelled.getAsBoolean()) {
+			throw new CancellationException();
+		}
+	}
+
+	private CompletableFuture<NamedLayer> createLayerAsync(LayerSpec spec, Executor executor) {
+		CompletableFuture<NamedLayer> result = new CompletableFuture<>();
+		pendingLayers.add(result);
+		result.whenComplete((l, t) -> pendingLayers.remove(result));
+		try {
+			(executor == null ? getAsyncExecutor() : executor).execute(() -> {
+				try {
+					NamedLayer created = createLayers(Collections.singletonList(spec), result::isCancelled).get(0);
+					if (!result.complete(created)) {
+						// cancelled after the layer was registered; nobody else can release it
+						created.close();
+					}
+				} catch (CancellationException e) {
+					// the future is already cancelled
+				} catch (Throwable t) {
+					result.completeExceptionally(t);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	private synchronized ExecutorService getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			String threadsProp = context.getProperty(ASYNC_THREADS_PROP);
+			int threads = threadsProp == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threadsProp);
+			AtomicInteger threadNum = new AtomicInteger();
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (r) -> {
+				Thread t = new Thread(() -> {
+					IN_ASYNC_THREAD.set(Boolean.TRUE);
+					r.run();
+				}, "JPMS Layer Factory-" + threadNum.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+			executor.allowCoreThreadTimeOut(true);
+			asyncExecutor = executor;
+		}
+		return asyncExecutor;
+	}
+
+	private Collection<Module> getNamedLayerModules(NamedLayer namedLayer) {
+		NamedLayerImpl impl = namedLayer instanceof SharedNamedLayer ? ((SharedNamedLayer) namedLayer).shared : namedLayer instanceof NamedLayerImpl ? (NamedLayerImpl) namedLayer : null;
+		return impl == null || impl.registration == null ? Collections.emptySet() : impl.registration.modules;
+	}
+
+	LayerMetricsImpl getMetrics() {
+		return metrics;
+	}
+
+	synchronized void shutdown() {
+		// layers not created yet will never be created
+		pendingLayers.forEach((f) -> f.cancel(false));
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdownNow();
+			asyncExecutor = null;
+		}
+		// events already published are still delivered
+		eventExecutor.shutdown();
+		layerConfigurations.close();
+		savePlan();
 	}
 
 	@Override
 	public NamedLayer createLayerWithOneLoader(String name, Set<Path> paths, Set<String> roots, ClassLoader parent) {
-		return createLayer(LoaderType.OneLoader, name, paths, roots, parent, null);
+		return createLayers(Collections.singletonList(LayerSpec.withOneLoader(name, paths, roots, parent)), () -> false).get(0);
 	}
 
 	@Override
 	public NamedLayer createLayerWithManyLoaders(String name, Set<Path> paths, Set<String> roots, ClassLoader parent) {
-		return createLayer(LoaderType.ManyLoaders, name, paths, roots, parent, null);
+		return createLayers(Collections.singletonList(LayerSpec.withManyLoaders(name, paths, roots, parent)), () -> false).get(0);
 	}
 
 	@Override
 	public NamedLayer createLayerWithMappedLoaders(String name, Set<Path> paths, Set<String> roots, Function<String, ClassLoader> mappedLoaders) {
-		return createLayer(LoaderType.MappedLoaders, name, paths, roots, null, mappedLoaders);
+		return createLayers(Collections.singletonList(LayerSpec.withMappedLoaders(name, paths, roots, mappedLoaders)), () -> false).get(0);
+	}
+
+	@Override
+	public List<NamedLayer> createLayers(List<LayerSpec> specs) {
+		return createLayers(specs, () -> false);
+	}
+
+	@Override
+	public CompletableFuture<NamedLayer> createLayerWithOneLoaderAsync(String name, Set<Path> paths, Set<String> roots, ClassLoader parent, Executor executor) {
+		return createLayerAsync(LayerSpec.withOneLoader(name, paths, roots, parent), executor);
+	}
+
+	@Override
+	public CompletableFuture<NamedLayer> createLayerWithManyLoadersAsync(String name, Set<Path> paths, Set<String> roots, ClassLoader parent, Executor executor) {
+		return createLayerAsync(LayerSpec.withManyLoaders(name, paths, roots, parent), executor);
+	}
+
+	@Override
+	public CompletableFuture<NamedLayer> createLayerWithMappedLoadersAsync(String name, Set<Path> paths, Set<String> roots, Function<String, ClassLoader> mappedLoaders, Executor executor) {
+		return createLayerAsync(LayerSpec.withMappedLoaders(name, paths, roots, mappedLoaders), executor);
 	}
 
 	@Override
 	public void modified(WovenClass wovenClass) {
 		if (wovenClass.getState() == WovenClass.TRANSFORMED) {
-			boolean createNewLayer;
-			// need to make sure the class loader is associated with a layer before allowing a class define
-			layersRead.lock();
+			Span waitEvent = events.classDefineWait(wovenClass);
 			try {
-				// check if there is an existing module for this wiring
-				createNewLayer = wiringToModule.get(wovenClass.getBundleWiring()) == null;
+				boolean createNewLayer;
+				// need to make sure the class loader is associated with a layer before allowing a class define
+				layersRead.lock();
+				try {
+					// check if there is an existing module for this wiring
+					createNewLayer = wiringToModule.get(wovenClass.getBundleWiring()) == null;
+				} finally {
+					layersRead.unlock();
+				}
+				if (createNewLayer) {
+					createNewWiringLayers();
+				}
 			} finally {
-				layersRead.unlock();
-			}
-			if (createNewLayer) {
-				createNewWiringLayers();
+				waitEvent.close();
 			}
+		} else if (wovenClass.getState() == WovenClass.DEFINED) {
+			defineCounters.defined(wovenClass.getBundleWiring());
 		}
 	}
 
@@ -733,13 +1973,20 @@ public class LayerFactoryImpl implements LayerFactory, WovenClassListener, Weavi
 	@Override
 	public void frameworkEvent(FrameworkEvent event) {
 		if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED) {
-			createNewWiringLayers();
+			if (autoRebuild) {
+				rebuildInvalidLayers();
+			} else {
+				createNewWiringLayers();
+			}
 		}
 	}
 
 	@Override
 	public void weave(WovenClass wovenClass) {
-		// do nothing; just need to make sure there is a hook so the WovenClassListener will get called
+		// there must be a hook so the WovenClassListener will get called;
+		// the bytes are not copied until weaving is complete, so the length
+		// is recorded here even if the module of the wiring does not exist yet
+		defineCounters.woven(wovenClass.getBundleWiring(), wovenClass.getBytes().length);
 	}
 
 	@Override
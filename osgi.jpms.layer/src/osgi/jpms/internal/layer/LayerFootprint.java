@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import osgi.jpms.layer.LayerMetrics.Footprint;
+import osgi.jpms.layer.LayerMetrics.MemoryStats;
+
+/**
+ * Accounts for the JPMS objects retained by the layer factory.  The modules and
+ * class loaders of bundle wirings that are no longer in use are held weakly so
+ * that the ones that stay alive, for example because a stale entry still
+ * references them, can be counted.
+ */
+class LayerFootprint {
+	static class Entry implements Footprint {
+		final String name;
+		final boolean namedLayer;
+		final int configurations;
+		final int controllers;
+		final long readEdges;
+
+		Entry(String name, boolean namedLayer, int configurations, int controllers, long readEdges) {
+			this.name = name;
+			this.namedLayer = namedLayer;
+			this.configurations = configurations;
+			this.controllers = controllers;
+			this.readEdges = readEdges;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public boolean isNamedLayer() {
+			return namedLayer;
+		}
+
+		@Override
+		public int getConfigurations() {
+			return configurations;
+		}
+
+		@Override
+		public int getControllers() {
+			return controllers;
+		}
+
+		@Override
+		public long getReadEdges() {
+			return readEdges;
+		}
+	}
+
+	static class Stats implements MemoryStats {
+		final int configurations;
+		final int cachedConfigurations;
+		final int controllers;
+		final long readEdges;
+		final int retainedModules;
+		final int retainedClassLoaders;
+		final int staleControllers;
+		final int staleNamedLayerEntries;
+
+		Stats(int configurations, int cachedConfigurations, int controllers, long readEdges, int retainedModules, int retainedClassLoaders, int staleControllers, int staleNamedLayerEntries) {
+			this.configurations = configurations;
+			this.cachedConfigurations = cachedConfigurations;
+			this.controllers = controllers;
+			this.readEdges = readEdges;
+			this.retainedModules = retainedModules;
+			this.retainedClassLoaders = retainedClassLoaders;
+			this.staleControllers = staleControllers;
+			this.staleNamedLayerEntries = staleNamedLayerEntries;
+		}
+
+		@Override
+		public int getConfigurations() {
+			return configurations;
+		}
+
+		@Override
+		public int getCachedConfigurations() {
+			return cachedConfigurations;
+		}
+
+		@Override
+		public int getControllers() {
+			return controllers;
+		}
+
+		@Override
+		public long getReadEdges() {
+			return readEdges;
+		}
+
+		@Override
+		public int getRetainedModules() {
+			return retainedModules;
+		}
+
+		@Override
+		public int getRetainedClassLoaders() {
+			return retainedClassLoaders;
+		}
+
+		@Override
+		public int getStaleControllers() {
+			return staleControllers;
+		}
+
+		@Override
+		public int getStaleNamedLayerEntries() {
+			return staleNamedLayerEntries;
+		}
+	}
+
+	private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+	private final Set<Reference<?>> retiredModules = ConcurrentHashMap.newKeySet();
+	private final Set<Reference<?>> retiredLoaders = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Starts watching the module and class loader of a bundle wiring that is no longer in use.
+	 * @param module the bundle module
+	 * @param loader the class loader to watch, or {@code null}
+	 */
+	void retire(Module module, ClassLoader loader) {
+		expunge();
+		if (module.isNamed()) {
+			retiredModules.add(new WeakReference<>(module, collected));
+		}
+		if (loader != null) {
+			retiredLoaders.add(new WeakReference<>(loader, collected));
+		}
+	}
+
+	int getRetainedModules() {
+		expunge();
+		return retiredModules.size();
+	}
+
+	int getRetainedClassLoaders() {
+		expunge();
+		return retiredLoaders.size();
+	}
+
+	private void expunge() {
+		for (Reference<?> ref = collected.poll(); ref != null; ref = collected.poll()) {
+			if (!retiredModules.remove(ref)) {
+				retiredLoaders.remove(ref);
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.lang.module.Configuration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An immutable view of what the factory built for the bundle modules.  It is
+ * created from a published bundle layer snapshot when first asked for, so
+ * inspecting the layers never takes the layers lock.
+ */
+final class LayerInspection {
+	static final class BundleEntry {
+		final long bundleId;
+		final String symbolicName;
+		// null for the unnamed module
+		final String moduleName;
+		final String layerType;
+		final List<String> layerParents;
+		final int layerModules;
+		// null if the bundle did not fall back
+		final String fallback;
+		final List<String> splitPackages;
+		final List<String> cycles;
+		final int readEdges;
+		final boolean hasController;
+
+		BundleEntry(long bundleId, String symbolicName, String moduleName, String layerType, List<String> layerParents, int layerModules, String fallback, List<String> splitPackages, List<String> cycles, int readEdges, boolean hasController) {
+			this.bundleId = bundleId;
+			this.symbolicName = symbolicName;
+			this.moduleName = moduleName;
+			this.layerType = layerType;
+			this.layerParents = Collections.unmodifiableList(layerParents);
+			this.layerModules = layerModules;
+			this.fallback = fallback;
+			this.splitPackages = Collections.unmodifiableList(splitPackages);
+			this.cycles = Collections.unmodifiableList(cycles);
+			this.readEdges = readEdges;
+			this.hasController = hasController;
+		}
+
+		BundleEntry withAddedReads(int addedReads) {
+			return new BundleEntry(bundleId, symbolicName, moduleName, layerType, layerParents, layerModules, fallback, splitPackages, cycles, readEdges + addedReads, hasController);
+		}
+	}
+
+	final long version;
+	final List<BundleEntry> bundles;
+	// the distinct configurations of the bundle modules
+	final int configurations;
+	final int controllers;
+	final int staleControllers;
+	final int staleNamedLayerEntries;
+
+	LayerInspection(long version, List<BundleEntry> bundles, int configurations, int controllers, int staleControllers, int staleNamedLayerEntries) {
+		this.version = version;
+		this.bundles = Collections.unmodifiableList(bundles);
+		this.configurations = configurations;
+		this.controllers = controllers;
+		this.staleControllers = staleControllers;
+		this.staleNamedLayerEntries = staleNamedLayerEntries;
+	}
+
+	/**
+	 * Creates the inspection of a snapshot.  The entries of the snapshot only
+	 * count the reads of their configurations; the reads added by the factory
+	 * are added here.
+	 */
+	static LayerInspection create(BundleLayerSnapshot layers) {
+		List<BundleEntry> bundles = new ArrayList<>(layers.entries.size());
+		Set<Configuration> configurations = Collections.newSetFromMap(new IdentityHashMap<>());
+		layers.entries.forEach((wiring, entry) -> {
+			Module module = layers.modules.get(wiring);
+			ModuleLayer layer = module == null ? null : module.getLayer();
+			if (layer != null) {
+				configurations.add(layer.configuration());
+			}
+			Integer addedReads = module == null ? null : layers.addedReads.get(module);
+			bundles.add(addedReads == null ? entry : entry.withAddedReads(addedReads));
+		});
+		bundles.sort((b1, b2) -> Long.compare(b1.bundleId, b2.bundleId));
+		return new LayerInspection(layers.getVersion(), bundles, configurations.size(), layers.controllers, layers.staleControllers, layers.staleNamedLayerEntries);
+	}
+
+	BundleEntry getBundle(long bundleId) {
+		for (BundleEntry entry : bundles) {
+			if (entry.bundleId == bundleId) {
+				return entry;
+			}
+		}
+		return null;
+	}
+}
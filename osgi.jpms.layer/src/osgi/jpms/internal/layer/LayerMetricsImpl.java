@@ -0,0 +1,356 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+import osgi.jpms.layer.LayerFactory.NamedLayer;
+import osgi.jpms.layer.LayerMetrics;
+
+/**
+ * Keeps counters and latency histograms for each phase.  Recording never blocks
+ * so it can be done while the layers lock is held.  The times are only printed
+ * to the console when the {@code osgi.jpms.layer.metrics.print} property is true.
+ */
+class LayerMetricsImpl implements LayerMetrics, LayerMetricsMXBean {
+	static final String METRICS_PRINT_PROP = "osgi.jpms.layer.metrics.print";
+	private static final long[] HISTOGRAM_BOUNDS_NANOS = new long[HISTOGRAM_BOUNDS_MILLIS.size()];
+	static {
+		for (int i = 0; i < HISTOGRAM_BOUNDS_NANOS.length; i++) {
+			HISTOGRAM_BOUNDS_NANOS[i] = TimeUnit.MILLISECONDS.toNanos(HISTOGRAM_BOUNDS_MILLIS.get(i));
+		}
+	}
+
+	static class Stats implements PhaseStats {
+		final LongAdder count = new LongAdder();
+		final LongAdder total = new LongAdder();
+		final AtomicLong max = new AtomicLong();
+		volatile long last;
+		final LongAdder[] buckets = new LongAdder[HISTOGRAM_BOUNDS_NANOS.length + 1];
+
+		Stats() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			count.increment();
+			total.add(nanos);
+			max.accumulateAndGet(nanos, Math::max);
+			last = nanos;
+			int bucket = 0;
+			while (bucket < HISTOGRAM_BOUNDS_NANOS.length && nanos > HISTOGRAM_BOUNDS_NANOS[bucket]) {
+				bucket++;
+			}
+			buckets[bucket].increment();
+		}
+
+		void reset() {
+			count.reset();
+			total.reset();
+			max.set(0);
+			last = 0;
+			for (LongAdder bucket : buckets) {
+				bucket.reset();
+			}
+		}
+
+		@Override
+		public long getCount() {
+			return count.sum();
+		}
+
+		@Override
+		public long getTotal(TimeUnit unit) {
+			return unit.convert(total.sum(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public long getMax(TimeUnit unit) {
+			return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public long getLast(TimeUnit unit) {
+			return unit.convert(last, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public long[] getHistogram() {
+			long[] result = new long[buckets.length];
+			for (int i = 0; i < buckets.length; i++) {
+				result[i] = buckets[i].sum();
+			}
+			return result;
+		}
+	}
+
+	// too frequent to print
+	private static final EnumSet<Phase> LOCK_PHASES = EnumSet.of(Phase.WRITE_LOCK_WAIT, Phase.WRITE_LOCK_HOLD, Phase.READ_LOCK_WAIT, Phase.READ_LOCK_HOLD);
+	private final Map<Phase, Stats> phases = new EnumMap<>(Phase.class);
+	private final boolean print;
+	private final BundleCosts bundleCosts = new BundleCosts();
+	private final ModuleDefineCounters defineCounters = new ModuleDefineCounters();
+	private volatile Function<NamedLayer, Collection<Module>> namedLayerModules = (l) -> Collections.emptySet();
+	private volatile Supplier<List<Footprint>> footprints = Collections::emptyList;
+	private volatile Supplier<MemoryStats> memoryStats = () -> new LayerFootprint.Stats(0, 0, 0, 0, 0, 0, 0, 0);
+	private volatile int nodeCount;
+	private volatile int moduleCount;
+	private volatile int namedLayerCount;
+
+	LayerMetricsImpl(boolean print) {
+		this.print = print;
+		for (Phase phase : Phase.values()) {
+			phases.put(phase, new Stats());
+		}
+	}
+
+	/**
+	 * Records the time since start for the phase.
+	 * @param phase the phase
+	 * @param start the start time from {@link System#nanoTime()}
+	 */
+	void record(Phase phase, long start) {
+		recordNanos(phase, System.nanoTime() - start);
+	}
+
+	void recordNanos(Phase phase, long nanos) {
+		phases.get(phase).record(nanos);
+		if (print && !LOCK_PHASES.contains(phase)) {
+			System.out.println("Time " + phase + ": " + TimeUnit.NANOSECONDS.toMillis(nanos));
+		}
+	}
+
+	BundleCosts getCosts() {
+		return bundleCosts;
+	}
+
+	ModuleDefineCounters getDefineCounters() {
+		return defineCounters;
+	}
+
+	/**
+	 * Sets the function that finds the bundle modules a named layer depends on.
+	 */
+	void setNamedLayerModules(Function<NamedLayer, Collection<Module>> namedLayerModules) {
+		this.namedLayerModules = namedLayerModules;
+	}
+
+	/**
+	 * Sets the suppliers of the footprints and memory statistics of the layer factory.
+	 */
+	void setFootprints(Supplier<List<Footprint>> footprints, Supplier<MemoryStats> memoryStats) {
+		this.footprints = footprints;
+		this.memoryStats = memoryStats;
+	}
+
+	void setCounts(int nodes, int modules, int namedLayers) {
+		this.nodeCount = nodes;
+		this.moduleCount = modules;
+		this.namedLayerCount = namedLayers;
+	}
+
+	void setNamedLayerCount(int namedLayers) {
+		this.namedLayerCount = namedLayers;
+	}
+
+	@Override
+	public PhaseStats getPhaseStats(Phase phase) {
+		Stats stats = phases.get(phase);
+		Stats snapshot = new Stats();
+		snapshot.count.add(stats.getCount());
+		snapshot.total.add(stats.total.sum());
+		snapshot.max.set(stats.max.get());
+		snapshot.last = stats.last;
+		long[] histogram = stats.getHistogram();
+		for (int i = 0; i < histogram.length; i++) {
+			snapshot.buckets[i].add(histogram[i]);
+		}
+		return snapshot;
+	}
+
+	@Override
+	public List<BundleCost> getBundleCosts(int limit) {
+		return bundleCosts.getRanked(limit);
+	}
+
+	@Override
+	public String reportBundleCosts(int limit) {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%4s %10s", "#", "TOTAL(ms)"));
+		for (Cost cost : Cost.values()) {
+			report.append(String.format(" %14s", cost));
+		}
+		report.append(String.format(" %-8s %s%n", "FALLBACK", "BUNDLE"));
+		int rank = 1;
+		for (BundleCost bundleCost : getBundleCosts(limit)) {
+			report.append(String.format("%4d %10.3f", rank++, toMillis(bundleCost.getTotal(TimeUnit.NANOSECONDS))));
+			for (Cost cost : Cost.values()) {
+				report.append(String.format(" %14.3f", toMillis(bundleCost.getTime(cost, TimeUnit.NANOSECONDS))));
+			}
+			String fallback = bundleCost.getFallback();
+			report.append(String.format(" %-8s %s [%d]%n", fallback == null ? "-" : fallback, bundleCost.getSymbolicName(), bundleCost.getBundleId()));
+		}
+		return report.toString();
+	}
+
+	@Override
+	public List<ModuleDefines> getModuleDefines(int limit) {
+		return defineCounters.getRanked(limit);
+	}
+
+	@Override
+	public DefineCounts getDependencyDefineCounts(NamedLayer namedLayer) {
+		return defineCounters.sum(namedLayerModules.apply(namedLayer));
+	}
+
+	@Override
+	public String reportModuleDefines(int limit) {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%4s %10s %12s %14s %s%n", "#", "CLASSES", "BYTES", "FIRST(ms)", "MODULE"));
+		int rank = 1;
+		for (ModuleDefines defines : getModuleDefines(limit)) {
+			long first = defines.getTimeToFirstDefine(TimeUnit.NANOSECONDS);
+			report.append(String.format("%4d %10d %12d %14s %s [%d]%n", rank++, defines.getClasses(), defines.getBytes(), first < 0 ? "-" : String.format("%.3f", toMillis(first)), defines.getModuleName(), defines.getBundleId()));
+		}
+		return report.toString();
+	}
+
+	@Override
+	public List<Footprint> getFootprints(int limit) {
+		return top(new ArrayList<>(footprints.get()), Comparator.comparingLong(Footprint::getReadEdges).reversed(), limit);
+	}
+
+	/**
+	 * Sorts the ranked list and returns a copy of its first entries, at most limit.
+	 */
+	static <T, R extends T> List<T> top(List<R> ranked, Comparator<? super R> order, int limit) {
+		ranked.sort(order);
+		return new ArrayList<>(ranked.subList(0, Math.min(Math.max(limit, 0), ranked.size())));
+	}
+
+	@Override
+	public MemoryStats getMemoryStats() {
+		return memoryStats.get();
+	}
+
+	@Override
+	public Map<String, Long> getMemory() {
+		MemoryStats stats = getMemoryStats();
+		Map<String, Long> result = new LinkedHashMap<>();
+		result.put("configurations", (long) stats.getConfigurations());
+		result.put("cachedConfigurations", (long) stats.getCachedConfigurations());
+		result.put("controllers", (long) stats.getControllers());
+		result.put("readEdges", stats.getReadEdges());
+		result.put("retainedModules", (long) stats.getRetainedModules());
+		result.put("retainedClassLoaders", (long) stats.getRetainedClassLoaders());
+		result.put("staleControllers", (long) stats.getStaleControllers());
+		result.put("staleNamedLayerEntries", (long) stats.getStaleNamedLayerEntries());
+		return result;
+	}
+
+	@Override
+	public String reportFootprints(int limit) {
+		StringBuilder report = new StringBuilder();
+		getMemory().forEach((name, value) -> report.append(name).append('=').append(value).append(' '));
+		report.append(String.format("%n%10s %14s %12s %-12s %s%n", "READS", "CONFIGURATIONS", "CONTROLLERS", "KIND", "NAME"));
+		for (Footprint footprint : getFootprints(limit)) {
+			report.append(String.format("%10d %14d %12d %-12s %s%n", footprint.getReadEdges(), footprint.getConfigurations(), footprint.getControllers(), footprint.isNamedLayer() ? "named layer" : "bundle", footprint.getName()));
+		}
+		return report.toString();
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / 1_000_000.0;
+	}
+
+	@Override
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	@Override
+	public int getModuleCount() {
+		return moduleCount;
+	}
+
+	@Override
+	public int getNamedLayerCount() {
+		return namedLayerCount;
+	}
+
+	@Override
+	public void reset() {
+		for (Stats stats : phases.values()) {
+			stats.reset();
+		}
+	}
+
+	private Map<String, Long> toMap(ToLongFunction<Stats> value) {
+		Map<String, Long> result = new LinkedHashMap<>();
+		phases.forEach((phase, stats) -> result.put(phase.name(), value.applyAsLong(stats)));
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getCounts() {
+		return toMap(Stats::getCount);
+	}
+
+	@Override
+	public Map<String, Long> getTotalMillis() {
+		return toMap((s) -> s.getTotal(TimeUnit.MILLISECONDS));
+	}
+
+	@Override
+	public Map<String, Long> getMaxMillis() {
+		return toMap((s) -> s.getMax(TimeUnit.MILLISECONDS));
+	}
+
+	@Override
+	public Map<String, long[]> getHistograms() {
+		Map<String, long[]> result = new LinkedHashMap<>();
+		phases.forEach((phase, stats) -> result.put(phase.name(), stats.getHistogram()));
+		return result;
+	}
+
+	@Override
+	public long[] getHistogramBoundsMillis() {
+		long[] bounds = new long[HISTOGRAM_BOUNDS_MILLIS.size()];
+		for (int i = 0; i < bounds.length; i++) {
+			bounds[i] = HISTOGRAM_BOUNDS_MILLIS.get(i);
+		}
+		return bounds;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.util.Map;
+
+/**
+ * The management interface of the layer metrics.  Phase statistics are keyed by
+ * the name of the {@link osgi.jpms.layer.LayerMetrics.Phase phase}.
+ */
+public interface LayerMetricsMXBean {
+	Map<String, Long> getCounts();
+
+	Map<String, Long> getTotalMillis();
+
+	Map<String, Long> getMaxMillis();
+
+	Map<String, long[]> getHistograms();
+
+	long[] getHistogramBoundsMillis();
+
+	/**
+	 * Reports the bundles with the most expensive modules first.
+	 * @param limit the maximum number of bundles to report
+	 * @return the report
+	 */
+	String reportBundleCosts(int limit);
+
+	/**
+	 * Reports the bundle modules that defined the most classes first.
+	 * @param limit the maximum number of modules to report
+	 * @return the report
+	 */
+	String reportModuleDefines(int limit);
+
+	/**
+	 * The JPMS objects retained by the layer factory.
+	 * @return the counts keyed by name
+	 * @see osgi.jpms.layer.LayerMetrics.MemoryStats
+	 */
+	Map<String, Long> getMemory();
+
+	/**
+	 * Reports the bundle modules and named layers with the most read edges first.
+	 * @param limit the maximum number of footprints to report
+	 * @return the report
+	 */
+	String reportFootprints(int limit);
+
+	int getNodeCount();
+
+	int getModuleCount();
+
+	int getNamedLayerCount();
+
+	void reset();
+}
@@ -0,0 +1,318 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.module.ModuleDescriptor;
+import java.lang.module.ModuleDescriptor.Builder;
+import java.lang.module.ModuleDescriptor.Exports;
+import java.lang.module.ModuleDescriptor.Provides;
+import java.lang.module.ModuleDescriptor.Requires;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * The plan used to create the bundle modules.  The plan records the steps in the
+ * order they were done, each with the module descriptors and the parent layers,
+ * so that a later start with the same bundle wirings can define the modules
+ * without computing the resolution graph.  The bundle wirings are identified by
+ * their {@link BundleWiringLastModified} values and layer types.
+ */
+class LayerPlan {
+	private static final int VERSION = 3;
+	// the parent id used for the boot layer
+	static final long BOOT_LAYER = -1;
+
+	enum Kind {
+		/**
+		 * One module in its own layer.
+		 */
+		MODULE,
+		/**
+		 * Many modules in a single layer.
+		 */
+		SINGLE_LAYER,
+		/**
+		 * The unnamed module of the bundle class loader.
+		 */
+		UNNAMED;
+	}
+
+	static class Member {
+		final long bundleId;
+		final Map<Long, Long> lastModifieds;
+		final String layerType;
+		// null for unnamed and skipped wirings
+		final ModuleDescriptor descriptor;
+		// the split packages and cycles of the wiring; kept for the layer inspection
+		final List<String> splitPackages;
+		final List<String> cycles;
+
+		Member(long bundleId, Map<Long, Long> lastModifieds, String layerType, ModuleDescriptor descriptor, List<String> splitPackages, List<String> cycles) {
+			this.bundleId = bundleId;
+			this.lastModifieds = lastModifieds;
+			this.layerType = layerType;
+			this.descriptor = descriptor;
+			this.splitPackages = Collections.unmodifiableList(splitPackages);
+			this.cycles = Collections.unmodifiableList(cycles);
+		}
+	}
+
+	static class Step {
+		final Kind kind;
+		final List<Member> members;
+		// bundle ids of modules in the parent layers, or BOOT_LAYER
+		final List<Long> parents;
+		// bundle ids of the resolution graph layer parents of a MODULE step
+		final List<Long> layerParents;
+
+		Step(Kind kind, List<Member> members, List<Long> parents, List<Long> layerParents) {
+			this.kind = kind;
+			this.members = Collections.unmodifiableList(members);
+			this.parents = Collections.unmodifiableList(parents);
+			this.layerParents = Collections.unmodifiableList(layerParents);
+		}
+	}
+
+	final String bootKey;
+	final List<Step> steps;
+
+	LayerPlan(List<Step> steps) {
+		this(getBootKey(), steps);
+	}
+
+	private LayerPlan(String bootKey, List<Step> steps) {
+		this.bootKey = bootKey;
+		this.steps = Collections.unmodifiableList(steps);
+	}
+
+	/**
+	 * The plan depends on the boot modules because every bundle module can require them.
+	 */
+	private static String getBootKey() {
+		Set<String> bootModules = new TreeSet<>();
+		for (Module m : ModuleLayer.boot().modules()) {
+			bootModules.add(m.getName());
+		}
+		return Runtime.version() + ":" + bootModules;
+	}
+
+	/**
+	 * Checks that the plan was made for exactly the specified bundle wirings.
+	 * @param wirings the wirings keyed by bundle id, without the system bundle
+	 * @param policy the layer types to use for the wirings
+	 * @return true if the plan can be replayed for the wirings
+	 */
+	boolean matches(Map<Long, BundleWiring> wirings, LayerTypePolicy policy) {
+		if (!getBootKey().equals(bootKey)) {
+			return false;
+		}
+		int planned = 0;
+		for (Step step : steps) {
+			for (Member member : step.members) {
+				BundleWiring wiring = wirings.get(member.bundleId);
+				if (wiring == null || !member.layerType.equals(policy.getLayerType(wiring).name())) {
+					return false;
+				}
+				if (!member.lastModifieds.equals(new BundleWiringLastModified(wiring).getLastModifieds())) {
+					return false;
+				}
+				planned++;
+			}
+		}
+		return planned == wirings.size();
+	}
+
+	static LayerPlan load(File planFile) {
+		if (planFile == null || !planFile.isFile()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(planFile)))) {
+			if (in.readInt() != VERSION) {
+				return null;
+			}
+			String bootKey = in.readUTF();
+			int numSteps = in.readInt();
+			List<Step> steps = new ArrayList<>(numSteps);
+			for (int i = 0; i < numSteps; i++) {
+				steps.add(readStep(in));
+			}
+			return new LayerPlan(bootKey, steps);
+		} catch (IOException | RuntimeException e) {
+			// the plan is made again
+			return null;
+		}
+	}
+
+	void save(File planFile) throws IOException {
+		planFile.getParentFile().mkdirs();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(planFile)))) {
+			out.writeInt(VERSION);
+			out.writeUTF(bootKey);
+			out.writeInt(steps.size());
+			for (Step step : steps) {
+				writeStep(out, step);
+			}
+		}
+	}
+
+	private static Step readStep(DataInput in) throws IOException {
+		Kind kind = Kind.valueOf(in.readUTF());
+		List<Long> parents = readLongs(in);
+		List<Long> layerParents = readLongs(in);
+		int numMembers = in.readInt();
+		List<Member> members = new ArrayList<>(numMembers);
+		for (int i = 0; i < numMembers; i++) {
+			long bundleId = in.readLong();
+			String layerType = in.readUTF();
+			int numLastModifieds = in.readInt();
+			Map<Long, Long> lastModifieds = new HashMap<>();
+			for (int j = 0; j < numLastModifieds; j++) {
+				lastModifieds.put(in.readLong(), in.readLong());
+			}
+			ModuleDescriptor descriptor = in.readBoolean() ? readDescriptor(in) : null;
+			List<String> splitPackages = ModuleInfo.readStrings(in, new ArrayList<>());
+			List<String> cycles = ModuleInfo.readStrings(in, new ArrayList<>());
+			members.add(new Member(bundleId, lastModifieds, layerType, descriptor, splitPackages, cycles));
+		}
+		return new Step(kind, members, parents, layerParents);
+	}
+
+	private static void writeStep(DataOutput out, Step step) throws IOException {
+		out.writeUTF(step.kind.name());
+		writeLongs(out, step.parents);
+		writeLongs(out, step.layerParents);
+		out.writeInt(step.members.size());
+		for (Member member : step.members) {
+			out.writeLong(member.bundleId);
+			out.writeUTF(member.layerType);
+			out.writeInt(member.lastModifieds.size());
+			for (Map.Entry<Long, Long> lastModified : member.lastModifieds.entrySet()) {
+				out.writeLong(lastModified.getKey());
+				out.writeLong(lastModified.getValue());
+			}
+			out.writeBoolean(member.descriptor != null);
+			if (member.descriptor != null) {
+				writeDescriptor(out, member.descriptor);
+			}
+			ModuleInfo.writeStrings(out, member.splitPackages);
+			ModuleInfo.writeStrings(out, member.cycles);
+		}
+	}
+
+	private static List<Long> readLongs(DataInput in) throws IOException {
+		int size = in.readInt();
+		List<Long> longs = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			longs.add(in.readLong());
+		}
+		return longs;
+	}
+
+	private static void writeLongs(DataOutput out, List<Long> longs) throws IOException {
+		out.writeInt(longs.size());
+		for (Long l : longs) {
+			out.writeLong(l);
+		}
+	}
+
+	private static ModuleDescriptor readDescriptor(DataInput in) throws IOException {
+		String name = in.readUTF();
+		Builder builder = in.readBoolean() ? ModuleDescriptor.newOpenModule(name) : ModuleDescriptor.newModule(name);
+		if (in.readBoolean()) {
+			builder.version(in.readUTF());
+		}
+		int numRequires = in.readInt();
+		for (int i = 0; i < numRequires; i++) {
+			String required = in.readUTF();
+			Set<Requires.Modifier> modifiers = EnumSet.noneOf(Requires.Modifier.class);
+			for (String modifier : ModuleInfo.readStrings(in, new ArrayList<>())) {
+				modifiers.add(Requires.Modifier.valueOf(modifier));
+			}
+			builder.requires(modifiers, required);
+		}
+		int numExports = in.readInt();
+		for (int i = 0; i < numExports; i++) {
+			String source = in.readUTF();
+			Set<String> targets = ModuleInfo.readStrings(in, new LinkedHashSet<>());
+			if (targets.isEmpty()) {
+				builder.exports(source);
+			} else {
+				builder.exports(source, targets);
+			}
+		}
+		builder.packages(ModuleInfo.readStrings(in, new LinkedHashSet<>()));
+		int numProvides = in.readInt();
+		for (int i = 0; i < numProvides; i++) {
+			builder.provides(in.readUTF(), ModuleInfo.readStrings(in, new ArrayList<>()));
+		}
+		for (String uses : ModuleInfo.readStrings(in, new ArrayList<>())) {
+			builder.uses(uses);
+		}
+		return builder.build();
+	}
+
+	private static void writeDescriptor(DataOutput out, ModuleDescriptor desc) throws IOException {
+		out.writeUTF(desc.name());
+		out.writeBoolean(desc.isOpen());
+		out.writeBoolean(desc.rawVersion().isPresent());
+		if (desc.rawVersion().isPresent()) {
+			out.writeUTF(desc.rawVersion().get());
+		}
+		out.writeInt(desc.requires().size());
+		for (Requires r : desc.requires()) {
+			out.writeUTF(r.name());
+			List<String> modifiers = new ArrayList<>();
+			for (Requires.Modifier modifier : r.modifiers()) {
+				modifiers.add(modifier.name());
+			}
+			ModuleInfo.writeStrings(out, modifiers);
+		}
+		out.writeInt(desc.exports().size());
+		for (Exports e : desc.exports()) {
+			out.writeUTF(e.source());
+			ModuleInfo.writeStrings(out, e.targets());
+		}
+		ModuleInfo.writeStrings(out, desc.packages());
+		out.writeInt(desc.provides().size());
+		for (Provides p : desc.provides()) {
+			out.writeUTF(p.service());
+			ModuleInfo.writeStrings(out, p.providers());
+		}
+		ModuleInfo.writeStrings(out, desc.uses());
+	}
+}
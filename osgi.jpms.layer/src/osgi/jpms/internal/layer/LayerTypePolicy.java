@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.wiring.BundleWiring;
+
+import osgi.jpms.internal.layer.EquinoxJPMSSupport.EquinoxJPMSStorageHook;
+import osgi.jpms.internal.layer.LayerFactoryImpl.LayerType;
+
+/**
+ * Decides which layer type is used for a bundle wiring.
+ * <p>
+ * The default type comes from the {@code osgi.jpms.layer.type} property.
+ * Groups of bundles can use another type by setting the
+ * {@code osgi.jpms.layer.type.<LayerType>} property to a comma separated
+ * list of bundle symbolic name patterns, where {@code *} matches any characters.
+ * A single bundle can choose its own type with the
+ * {@code Equinox-JPMS-LayerType} manifest header, which wins over the patterns.
+ * The header is read from the revision of the wiring, so a bundle that is
+ * updated but not refreshed keeps the type of its current wiring.
+ */
+class LayerTypePolicy {
+	static final String LAYER_TYPE_PROP = "osgi.jpms.layer.type";
+	static final String LAYER_TYPE_HEADER = "Equinox-JPMS-LayerType";
+
+	private final Activator activator;
+	private final LayerType defaultType;
+	private final Map<LayerType, List<Pattern>> patterns = new LinkedHashMap<>();
+
+	LayerTypePolicy(Activator activator, BundleContext context) {
+		this.activator = activator;
+		String layerTypeProp = context.getProperty(LAYER_TYPE_PROP);
+		this.defaultType = layerTypeProp == null ? LayerType.OneBundlePerLayerWithHierarchy : LayerType.valueOf(layerTypeProp);
+		for (LayerType type : LayerType.values()) {
+			String bsnPatterns = context.getProperty(LAYER_TYPE_PROP + '.' + type.name());
+			if (bsnPatterns != null) {
+				List<Pattern> typePatterns = new ArrayList<>();
+				for (String bsnPattern : bsnPatterns.split(",")) {
+					bsnPattern = bsnPattern.trim();
+					if (!bsnPattern.isEmpty()) {
+						typePatterns.add(toPattern(bsnPattern));
+					}
+				}
+				patterns.put(type, typePatterns);
+			}
+		}
+	}
+
+	private static Pattern toPattern(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int start = 0;
+		for (int star = glob.indexOf('*'); star >= 0; star = glob.indexOf('*', start)) {
+			if (star > start) {
+				regex.append(Pattern.quote(glob.substring(start, star)));
+			}
+			regex.append(".*");
+			start = star + 1;
+		}
+		if (start < glob.length()) {
+			regex.append(Pattern.quote(glob.substring(start)));
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	LayerType getDefaultType() {
+		return defaultType;
+	}
+
+	LayerType getLayerType(BundleWiring wiring) {
+		if (wiring.getBundle().getBundleId() == 0) {
+			return defaultType;
+		}
+		EquinoxJPMSStorageHook hook = EquinoxJPMSSupport.getStorageHook(wiring.getRevision());
+		String header = hook == null ? null : hook.getLayerTypeHeader();
+		if (header != null) {
+			try {
+				return LayerType.valueOf(header);
+			} catch (IllegalArgumentException e) {
+				activator.logError("Bad " + LAYER_TYPE_HEADER + " header in: " + wiring.getRevision().getSymbolicName(), e);
+			}
+		}
+		String bsn = wiring.getRevision().getSymbolicName();
+		if (bsn != null) {
+			for (Map.Entry<LayerType, List<Pattern>> typePatterns : patterns.entrySet()) {
+				for (Pattern pattern : typePatterns.getValue()) {
+					if (pattern.matcher(bsn).matches()) {
+						return typePatterns.getKey();
+					}
+				}
+			}
+		}
+		return defaultType;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.osgi.framework.wiring.BundleWiring;
+
+import osgi.jpms.layer.LayerMetrics.DefineCounts;
+import osgi.jpms.layer.LayerMetrics.ModuleDefines;
+
+/**
+ * Counts the classes defined by the bundle modules.  The counters are updated
+ * by the class defining threads without taking the layers lock.  Bytes woven
+ * before the module of a wiring exists are counted once the module is put.
+ */
+class ModuleDefineCounters {
+	static class Counters {
+		final long bundleId;
+		final LongAdder classes = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final AtomicLong firstDefine = new AtomicLong(-1);
+		volatile String moduleName;
+		volatile Module module;
+		volatile long created;
+
+		Counters(BundleWiring wiring) {
+			this.bundleId = wiring.getBundle().getBundleId();
+		}
+
+		synchronized void setModule(BundleWiring wiring, Module module) {
+			if (this.module == null) {
+				created = System.nanoTime();
+			}
+			this.moduleName = module.isNamed() ? module.getName() : wiring.getRevision().getSymbolicName();
+			this.module = module;
+		}
+
+		Snapshot snapshot() {
+			return new Snapshot(bundleId, moduleName, classes.sum(), bytes.sum(), firstDefine.get());
+		}
+	}
+
+	static class Snapshot implements ModuleDefines {
+		final long bundleId;
+		final String moduleName;
+		final long classes;
+		final long bytes;
+		final long firstDefine;
+
+		Snapshot(long bundleId, String moduleName, long classes, long bytes, long firstDefine) {
+			this.bundleId = bundleId;
+			this.moduleName = moduleName;
+			this.classes = classes;
+			this.bytes = bytes;
+			this.firstDefine = firstDefine;
+		}
+
+		@Override
+		public long getClasses() {
+			return classes;
+		}
+
+		@Override
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public long getTimeToFirstDefine(TimeUnit unit) {
+			return firstDefine < 0 ? -1 : unit.convert(firstDefine, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public long getBundleId() {
+			return bundleId;
+		}
+
+		@Override
+		public String getModuleName() {
+			return moduleName;
+		}
+	}
+
+	private final Map<BundleWiring, Counters> counters = new ConcurrentHashMap<>();
+
+	void put(BundleWiring wiring, Module module) {
+		// keep the existing counts; the wiring may already have woven classes
+		counters.computeIfAbsent(wiring, Counters::new).setModule(wiring, module);
+	}
+
+	void remove(BundleWiring wiring) {
+		counters.remove(wiring);
+	}
+
+	void removeUnused() {
+		// wirings that were woven but never got a module
+		counters.entrySet().removeIf((e) -> e.getValue().module == null && !e.getKey().isInUse());
+	}
+
+	void woven(BundleWiring wiring, int bytes) {
+		counters.computeIfAbsent(wiring, Counters::new).bytes.add(bytes);
+	}
+
+	void defined(BundleWiring wiring) {
+		Counters c = counters.get(wiring);
+		if (c != null) {
+			c.classes.increment();
+			// classes defined before the module is put have no creation time to measure from
+			if (c.firstDefine.get() < 0 && c.module != null && c.created != 0) {
+				c.firstDefine.compareAndSet(-1, System.nanoTime() - c.created);
+			}
+		}
+	}
+
+	List<ModuleDefines> getRanked(int limit) {
+		List<Snapshot> ranked = new ArrayList<>(counters.size());
+		for (Counters c : counters.values()) {
+			if (c.module != null) {
+				ranked.add(c.snapshot());
+			}
+		}
+		return LayerMetricsImpl.top(ranked, Comparator.comparingLong(Snapshot::getClasses).reversed(), limit);
+	}
+
+	/**
+	 * Sums the counts of the bundle modules that are in the given modules.
+	 * Each bundle module is counted once no matter how often it is given.
+	 */
+	DefineCounts sum(Collection<Module> modules) {
+		long classes = 0;
+		long bytes = 0;
+		long firstDefine = -1;
+		for (Counters c : counters.values()) {
+			if (modules.contains(c.module)) {
+				classes += c.classes.sum();
+				bytes += c.bytes.sum();
+				long first = c.firstDefine.get();
+				if (first >= 0 && (firstDefine < 0 || first < firstDefine)) {
+					firstDefine = first;
+				}
+			}
+		}
+		return new Snapshot(-1, null, classes, bytes, firstDefine);
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.module.ModuleDescriptor;
+import java.lang.module.ModuleDescriptor.Exports;
+import java.lang.module.ModuleDescriptor.Provides;
+import java.lang.module.ModuleDescriptor.Requires;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The parts of a module descriptor that are used to create the revision of a
+ * JPMS module bundle.  The module info can be stored so the module-info of
+ * the bundle content does not need to be parsed again.
+ */
+class ModuleInfo {
+	static class Require {
+		final String name;
+		final boolean isStatic;
+		final boolean isTransitive;
+
+		Require(String name, boolean isStatic, boolean isTransitive) {
+			this.name = name;
+			this.isStatic = isStatic;
+			this.isTransitive = isTransitive;
+		}
+	}
+
+	final String name;
+	// null if the module has no version
+	final String version;
+	// the exported packages with their targets; unqualified exports have no targets
+	final Map<String, Set<String>> exports;
+	final Map<String, List<String>> provides;
+	final List<Require> requires;
+	final Set<String> uses;
+
+	private ModuleInfo(String name, String version, Map<String, Set<String>> exports, Map<String, List<String>> provides, List<Require> requires, Set<String> uses) {
+		this.name = name;
+		this.version = version;
+		this.exports = exports;
+		this.provides = provides;
+		this.requires = requires;
+		this.uses = uses;
+	}
+
+	static ModuleInfo of(ModuleDescriptor desc) {
+		Map<String, Set<String>> exports = new LinkedHashMap<>();
+		for (Exports e : desc.exports()) {
+			exports.put(e.source(), new LinkedHashSet<>(e.targets()));
+		}
+		Map<String, List<String>> provides = new LinkedHashMap<>();
+		for (Provides p : desc.provides()) {
+			provides.put(p.service(), new ArrayList<>(p.providers()));
+		}
+		List<Require> requires = new ArrayList<>();
+		for (Requires r : desc.requires()) {
+			requires.add(new Require(r.name(), r.modifiers().contains(Requires.Modifier.STATIC), r.modifiers().contains(Requires.Modifier.TRANSITIVE)));
+		}
+		return new ModuleInfo(desc.name(), desc.version().map(Object::toString).orElse(null), exports, provides, requires, new LinkedHashSet<>(desc.uses()));
+	}
+
+	static ModuleInfo read(DataInput in) throws IOException {
+		String name = in.readUTF();
+		String version = in.readBoolean() ? in.readUTF() : null;
+		int numExports = in.readInt();
+		Map<String, Set<String>> exports = new LinkedHashMap<>();
+		for (int i = 0; i < numExports; i++) {
+			exports.put(in.readUTF(), readStrings(in, new LinkedHashSet<>()));
+		}
+		int numProvides = in.readInt();
+		Map<String, List<String>> provides = new LinkedHashMap<>();
+		for (int i = 0; i < numProvides; i++) {
+			provides.put(in.readUTF(), readStrings(in, new ArrayList<>()));
+		}
+		int numRequires = in.readInt();
+		List<Require> requires = new ArrayList<>(numRequires);
+		for (int i = 0; i < numRequires; i++) {
+			requires.add(new Require(in.readUTF(), in.readBoolean(), in.readBoolean()));
+		}
+		Set<String> uses = readStrings(in, new LinkedHashSet<>());
+		return new ModuleInfo(name, version, exports, provides, requires, uses);
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeUTF(name);
+		out.writeBoolean(version != null);
+		if (version != null) {
+			out.writeUTF(version);
+		}
+		out.writeInt(exports.size());
+		for (Map.Entry<String, Set<String>> e : exports.entrySet()) {
+			out.writeUTF(e.getKey());
+			writeStrings(out, e.getValue());
+		}
+		out.writeInt(provides.size());
+		for (Map.Entry<String, List<String>> p : provides.entrySet()) {
+			out.writeUTF(p.getKey());
+			writeStrings(out, p.getValue());
+		}
+		out.writeInt(requires.size());
+		for (Require r : requires) {
+			out.writeUTF(r.name);
+			out.writeBoolean(r.isStatic);
+			out.writeBoolean(r.isTransitive);
+		}
+		writeStrings(out, uses);
+	}
+
+	static <C extends Collection<String>> C readStrings(DataInput in, C strings) throws IOException {
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			strings.add(in.readUTF());
+		}
+		return strings;
+	}
+
+	static void writeStrings(DataOutput out, Collection<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		for (String s : strings) {
+			out.writeUTF(s);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + (version == null ? "" : "@" + version);
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.io.IOException;
+import java.lang.module.FindException;
+import java.lang.module.ModuleFinder;
+import java.lang.module.ModuleReference;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * A cache of the modules found on module paths.  The modules of each jar or
+ * exploded module are indexed by the size and last modified time of the artifact
+ * and are only read again when these change.  A directory of modules is only
+ * listed again when its own time stamp changes, which happens when entries are
+ * added or removed.
+ * <p>
+ * This class is not thread safe.
+ */
+class ModulePathCache {
+	/**
+	 * The modules of a single jar or exploded module.
+	 */
+	private static class Artifact {
+		final String stamp;
+		final List<ModuleReference> modules;
+
+		Artifact(Path path, String stamp) {
+			this.stamp = stamp;
+			this.modules = new ArrayList<>(ModuleFinder.of(path).findAll());
+		}
+	}
+
+	/**
+	 * The modules found on a module path.
+	 */
+	static class PathContent implements ModuleFinder {
+		final List<String> fingerprint;
+		final Map<String, ModuleReference> modules;
+		final Set<String> required;
+
+		PathContent(Path path, List<String> fingerprint, List<Artifact> artifacts) {
+			this.fingerprint = Collections.unmodifiableList(fingerprint);
+			Map<String, ModuleReference> found = new LinkedHashMap<>();
+			Set<String> requires = new HashSet<>();
+			for (Artifact artifact : artifacts) {
+				for (ModuleReference module : artifact.modules) {
+					String name = module.descriptor().name();
+					if (found.putIfAbsent(name, module) != null) {
+						// same as the module finder of a directory
+						throw new FindException("Two versions of module " + name + " found in " + path);
+					}
+					module.descriptor().requires().forEach((r) -> requires.add(r.name()));
+				}
+			}
+			this.modules = Collections.unmodifiableMap(found);
+			this.required = Collections.unmodifiableSet(requires);
+		}
+
+		@Override
+		public Optional<ModuleReference> find(String name) {
+			return Optional.ofNullable(modules.get(name));
+		}
+
+		@Override
+		public Set<ModuleReference> findAll() {
+			return new HashSet<>(modules.values());
+		}
+	}
+
+	/**
+	 * The last scan of a module path.
+	 */
+	private static class Scan {
+		final PathContent content;
+		// the artifacts by the path of the artifact
+		final Map<Path, Artifact> artifacts;
+		// the stamp of the directory when it was listed; null if the path is not a directory of modules
+		final String dirStamp;
+
+		Scan(PathContent content, Map<Path, Artifact> artifacts, String dirStamp) {
+			this.content = content;
+			this.artifacts = artifacts;
+			this.dirStamp = dirStamp;
+		}
+	}
+
+	private final Map<Path, Scan> scans = new HashMap<>();
+
+	/**
+	 * Returns the modules found on the path.  The same content is returned as the
+	 * previous call for the path if nothing changed.
+	 * @param path the module path
+	 * @return the modules found on the path
+	 */
+	PathContent getContent(Path path) {
+		Scan previous = scans.get(path);
+		if (previous != null && isUnchanged(path, previous)) {
+			// no artifacts of the path changed
+			return previous.content;
+		}
+		Map<Path, Artifact> artifacts = new LinkedHashMap<>();
+		List<String> fingerprint = new ArrayList<>();
+		String dirStamp = null;
+		if (Files.isDirectory(path) && !Files.exists(path.resolve("module-info.class"))) {
+			// the entries identify the content, not the time stamp of the directory
+			fingerprint.add(path.toString());
+			// stamp before listing so no change is missed
+			dirStamp = stamp(path);
+			List<Path> children = new ArrayList<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+				stream.forEach(children::add);
+			} catch (IOException e) {
+				fingerprint.add(path + ":" + e);
+			}
+			Collections.sort(children);
+			for (Path child : children) {
+				String stamp;
+				if (Files.isDirectory(child)) {
+					// an exploded module
+					Path moduleInfo = child.resolve("module-info.class");
+					if (!Files.exists(moduleInfo)) {
+						continue;
+					}
+					stamp = stamp(moduleInfo);
+				} else if (child.getFileName().toString().endsWith(".jar")) {
+					stamp = stamp(child);
+				} else {
+					continue;
+				}
+				fingerprint.add(stamp);
+				artifacts.put(child, getArtifact(child, stamp, previous));
+			}
+		} else {
+			String stamp = Files.isDirectory(path) ? stamp(path.resolve("module-info.class")) : stamp(path);
+			fingerprint.add(stamp);
+			artifacts.put(path, getArtifact(path, stamp, previous));
+		}
+		if (previous != null && previous.content.fingerprint.equals(fingerprint)) {
+			// only the time stamp of the directory changed
+			scans.put(path, new Scan(previous.content, previous.artifacts, dirStamp));
+			return previous.content;
+		}
+		PathContent content = new PathContent(path, fingerprint, new ArrayList<>(artifacts.values()));
+		scans.put(path, new Scan(content, artifacts, dirStamp));
+		return content;
+	}
+
+	/**
+	 * Checks the directory of modules and each of the artifacts of the scan.
+	 * Exploded modules are checked by their module-info.class.
+	 */
+	private static boolean isUnchanged(Path path, Scan scan) {
+		if (scan.dirStamp != null && !scan.dirStamp.equals(stamp(path))) {
+			// entries were added or removed
+			return false;
+		}
+		for (Map.Entry<Path, Artifact> artifact : scan.artifacts.entrySet()) {
+			Path artifactPath = artifact.getKey();
+			Path stamped = Files.isDirectory(artifactPath) ? artifactPath.resolve("module-info.class") : artifactPath;
+			if (!artifact.getValue().stamp.equals(stamp(stamped))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Artifact getArtifact(Path path, String stamp, Scan previous) {
+		Artifact artifact = previous == null ? null : previous.artifacts.get(path);
+		if (artifact == null || !artifact.stamp.equals(stamp)) {
+			artifact = new Artifact(path, stamp);
+		}
+		return artifact;
+	}
+
+	void close() {
+		scans.clear();
+	}
+
+	private static String stamp(Path path) {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			return path + ":" + attrs.size() + ":" + attrs.lastModifiedTime().toMillis();
+		} catch (IOException e) {
+			return path + ":-";
+		}
+	}
+}
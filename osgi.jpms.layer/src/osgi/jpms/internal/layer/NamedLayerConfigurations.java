@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.lang.module.Configuration;
+import java.lang.module.ModuleFinder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cache of the configurations resolved for named layers.  A configuration
+ * is reused when the content of the module paths, the root modules and the
+ * parent configurations are the same as a previous resolution.
+ */
+public class NamedLayerConfigurations {
+	private static final int MAX_CONFIGURATIONS = 64;
+
+	/**
+	 * The modules found on a set of module paths.
+	 */
+	public static class ModulePath {
+		final List<String> fingerprint;
+		final ModuleFinder finder;
+		final Set<String> required;
+
+		ModulePath(List<ModulePathCache.PathContent> entries) {
+			List<String> pathsFingerprint = new ArrayList<>();
+			List<ModuleFinder> finders = new ArrayList<>(entries.size());
+			Set<String> requires = new HashSet<>();
+			for (ModulePathCache.PathContent entry : entries) {
+				pathsFingerprint.addAll(entry.fingerprint);
+				finders.add(entry);
+				requires.addAll(entry.required);
+			}
+			this.fingerprint = pathsFingerprint;
+			// the first path that has a module wins, same as ModuleFinder.of(Path...)
+			this.finder = finders.size() == 1 ? finders.get(0) : ModuleFinder.compose(finders.toArray(new ModuleFinder[0]));
+			this.required = Collections.unmodifiableSet(requires);
+		}
+
+		/**
+		 * The content of the paths.  Equal fingerprints mean the paths
+		 * have the same modules.
+		 * @return the fingerprint of the paths
+		 */
+		public List<String> getFingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * The finder for the modules on the paths.
+		 * @return the module finder
+		 */
+		public ModuleFinder getFinder() {
+			return finder;
+		}
+
+		/**
+		 * The names of all modules required by the modules on the paths.
+		 * @return the required module names
+		 */
+		public Set<String> getRequired() {
+			return required;
+		}
+	}
+
+	private static class Key {
+		private final List<String> fingerprint;
+		private final Set<String> roots;
+		private final List<Configuration> parents;
+		private final int hashCode;
+
+		Key(List<String> fingerprint, Set<String> roots, List<Configuration> parents) {
+			this.fingerprint = fingerprint;
+			this.roots = new HashSet<>(roots);
+			this.parents = new ArrayList<>(parents);
+			this.hashCode = (fingerprint.hashCode() * 31 + this.roots.hashCode()) * 31 + this.parents.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return fingerprint.equals(other.fingerprint) && roots.equals(other.roots) && parents.equals(other.parents);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	private final ModulePathCache modulePathCache = new ModulePathCache();
+	private final Map<Key, Configuration> configurations = new LinkedHashMap<Key, Configuration>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Configuration> eldest) {
+			return size() > MAX_CONFIGURATIONS;
+		}
+	};
+
+	/**
+	 * Returns the modules found on the specified paths.  The paths are only
+	 * scanned again if their content changed since the last scan.
+	 * @param paths the module paths
+	 * @return the modules found on the paths
+	 */
+	public ModulePath getModulePath(Collection<Path> paths) {
+		return getModulePaths(Collections.singletonList(paths)).get(0);
+	}
+
+	/**
+	 * Returns the modules found on each of the specified sets of paths.  Each
+	 * distinct path is checked for changes and scanned at most once.
+	 * @param pathSets the sets of module paths
+	 * @return the modules found on each set of paths
+	 */
+	public synchronized List<ModulePath> getModulePaths(List<? extends Collection<Path>> pathSets) {
+		Map<Path, ModulePathCache.PathContent> checked = new HashMap<>();
+		List<ModulePath> result = new ArrayList<>(pathSets.size());
+		for (Collection<Path> paths : pathSets) {
+			List<ModulePathCache.PathContent> entries = new ArrayList<>(paths.size());
+			for (Path path : paths) {
+				entries.add(checked.computeIfAbsent(path, modulePathCache::getContent));
+			}
+			result.add(new ModulePath(entries));
+		}
+		return result;
+	}
+
+	/**
+	 * Clears the cache.
+	 */
+	public synchronized void close() {
+		modulePathCache.close();
+		configurations.clear();
+	}
+
+	/**
+	 * Returns a configuration for the roots found in the module path resolved
+	 * against the parent configurations.  A cached configuration is returned
+	 * if the same module path content, roots and parents have been resolved before.
+	 * @param modulePath the modules to resolve
+	 * @param roots the root modules
+	 * @param parents the parent configurations
+	 * @return the resolved configuration
+	 */
+	public Configuration resolveAndBind(ModulePath modulePath, Set<String> roots, List<Configuration> parents) {
+		Key key = new Key(modulePath.fingerprint, roots, parents);
+		synchronized (this) {
+			Configuration config = configurations.get(key);
+			if (config != null) {
+				return config;
+			}
+		}
+		Configuration config = Configuration.resolveAndBind(ModuleFinder.of(), parents, modulePath.finder, roots);
+		synchronized (this) {
+			configurations.put(key, config);
+		}
+		return config;
+	}
+
+	/**
+	 * The number of cached configurations.
+	 * @return the number of configurations
+	 */
+	public synchronized int size() {
+		return configurations.size();
+	}
+
+	/**
+	 * Removes the cached configurations that have any of the specified parents.
+	 * @param removed the parent configurations that are no longer used
+	 */
+	public synchronized void removeParents(Set<Configuration> removed) {
+		if (removed.isEmpty()) {
+			return;
+		}
+		configurations.keySet().removeIf((k) -> !Collections.disjoint(k.parents, removed));
+	}
+}
@@ -33,13 +33,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Stream;
 
-import org.osgi.framework.Constants;
-import org.osgi.framework.wiring.BundleRevision;
 import org.osgi.framework.wiring.BundleWiring;
 
 /**
@@ -94,13 +91,29 @@ public class NodeFinder implements ModuleFinder {
 	 * @param wirings a mapping of module names to bundle wirings.  The bundle
 	 * wiring will be used to back a module with a name of the key value.
 	 */
-	public NodeFinder(Activator activator, ResolutionGraph.Node node, boolean includeRequires, boolean requireBootModules) {
-		String bsn = node.getValue().getRevision().getSymbolicName();
-		name = bsn == null ? "" : mungeModuleName(bsn);
-		moduleRef = createModuleReference(activator, name, node, includeRequires, requireBootModules);
+	public NodeFinder(Activator activator, RevisionIndex index, ResolutionGraph.Node node, boolean includeRequires, boolean requireBootModules) {
+		RevisionIndex.Entry entry = index.getEntry(node.getValue());
+		name = entry.getModuleName();
+		moduleRef = createModuleReference(activator, index, entry, node, includeRequires, requireBootModules);
 	}
 
-	private static ModuleReference createModuleReference(Activator activator, String name, final ResolutionGraph.Node node, boolean includeRequires, boolean requireBootModules) {
+	/**
+	 * Creates a module finder for a descriptor from a layer plan.
+	 * @param desc the module descriptor
+	 * @param wiring the bundle wiring that backs the module
+	 */
+	NodeFinder(ModuleDescriptor desc, BundleWiring wiring) {
+		name = desc.name();
+		moduleRef = new ModuleReference(desc, null){
+			@Override
+			public ModuleReader open() throws IOException {
+				return getReader(wiring);
+			}
+		};
+	}
+
+	private static ModuleReference createModuleReference(Activator activator, RevisionIndex index, RevisionIndex.Entry entry, final ResolutionGraph.Node node, boolean includeRequires, boolean requireBootModules) {
+		String name = entry.getModuleName();
 		// name -> bundle bsn
 		Builder builder = ModuleDescriptor.newOpenModule(name);
 		// version -> bundle version
@@ -138,14 +151,7 @@ public class NodeFinder implements ModuleFinder {
 
 		if (includeRequires) {
 			for (ResolutionGraph.Node dependency : node.dependsOn()) {
-				BundleRevision r = dependency.getValue().getRevision();
-				String bsn;
-				if (r.getBundle().getBundleId() == 0) {
-					bsn = Constants.SYSTEM_BUNDLE_SYMBOLICNAME;
-				} else {
-					bsn = r.getSymbolicName();
-				}
-				bsn = mungeModuleName(bsn);
+				String bsn = index.getEntry(dependency.getValue()).getModuleName();
 				if (node.isTransitive(dependency)) {
 					builder.requires(EnumSet.of(Modifier.TRANSITIVE), bsn);
 				} else {
@@ -154,21 +160,9 @@ public class NodeFinder implements ModuleFinder {
 			}
 		}
 
-		node.getValue().getCapabilities(JpmsServiceNamespace.JPMS_SERVICE_NAMESPACE).forEach(
-				(p) -> {
-					String service = (String) p.getAttributes().get(JpmsServiceNamespace.JPMS_SERVICE_NAMESPACE);
-					@SuppressWarnings("unchecked")
-					List<String> providesWith = (List<String>) p.getAttributes().get(JpmsServiceNamespace.CAPABILITY_PROVIDES_WITH);
-					builder.provides(
-							service,
-							providesWith);
-				}
-		);
+		entry.getProvides().forEach((service, providesWith) -> builder.provides(service, providesWith));
 
-		node.getValue().getRevision().getRequirements(JpmsServiceNamespace.JPMS_SERVICE_NAMESPACE).forEach(
-				(u) -> builder.uses(
-						(String) u.getAttributes().get(JpmsServiceNamespace.JPMS_SERVICE_NAMESPACE))
-		);
+		entry.getUses().forEach((u) -> builder.uses(u));
 
 		ModuleDescriptor desc = builder.build();
 		return new ModuleReference(desc, null){
@@ -22,6 +22,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -42,6 +43,8 @@ public class ResolutionGraph implements Iterable<ResolutionGraph.Node>{
 		private boolean checkedCycles = false;
 		private boolean hasSplitSources = false;
 		private boolean hasCycleSources = false;
+		private Set<Node> layerParents = Collections.emptySet();
+		private Set<Node> layerAncestors;
 
 		Node(BundleWiring wiring, Set<BundlePackage> provides, Set<BundlePackage> substitutes, Set<BundlePackage> privates) {
 			this.v = wiring;
@@ -78,10 +81,73 @@ public class ResolutionGraph implements Iterable<ResolutionGraph.Node>{
 			return dependsOn;
 		}
 
+		/**
+		 * Returns the packages this node gets from more than one node.
+		 * @return the split packages
+		 */
+		public Set<BundlePackage> getSplitPackages() {
+			Set<BundlePackage> result = new HashSet<>();
+			sources.forEach((p, sourceNodes) -> {
+				if (sourceNodes.size() > 1) {
+					result.add(p);
+				}
+			});
+			return result;
+		}
+
+		/**
+		 * Returns the nodes this node depends on which also depend on this node.
+		 * @return the dependencies in a cycle with this node
+		 */
+		public Set<Node> getCycleDependencies() {
+			Set<Node> result = new HashSet<>();
+			for (Node d : dependsOn) {
+				if (detectCycle(new HashSet<>(), this, Collections.singleton(d))) {
+					result.add(d);
+				}
+			}
+			return result;
+		}
+
 		public boolean isTransitive(Node node) {
 			return transitives.contains(node);
 		}
 
+		/**
+		 * Records the nodes whose layers are the parents of the layer defined for this node.
+		 * @param parents the parent nodes
+		 */
+		public void setLayerParents(Set<Node> parents) {
+			this.layerParents = Collections.unmodifiableSet(new HashSet<>(parents));
+			this.layerAncestors = null;
+		}
+
+		public Set<Node> getLayerParents() {
+			return layerParents;
+		}
+
+		/**
+		 * Returns all the nodes whose layers are reachable from the layer of this node.
+		 * The result is cached because a layer can never change its parents.
+		 * @return the nodes reachable through the layer parents of this node
+		 */
+		public Set<Node> getLayerAncestors() {
+			Set<Node> result = layerAncestors;
+			if (result == null) {
+				if (layerParents.isEmpty()) {
+					result = Collections.emptySet();
+				} else {
+					result = new HashSet<>();
+					for (Node parent : layerParents) {
+						result.add(parent);
+						result.addAll(parent.getLayerAncestors());
+					}
+				}
+				layerAncestors = result;
+			}
+			return result;
+		}
+
 		@Override
 		public boolean equals(Object o) {
 			if (!(o instanceof ResolutionGraph.Node)) {
@@ -246,6 +312,8 @@ public class ResolutionGraph implements Iterable<ResolutionGraph.Node>{
 	}
 
 	private final Map<BundleWiring, Node> nodes = new HashMap<>();
+	// the layer parents of wirings whose modules were defined before their nodes were added
+	private final Map<BundleWiring, Set<BundleWiring>> plannedLayerParents = new HashMap<>();
 
 	public Node addNode(BundleWiring wiring, Set<BundlePackage> provides, Set<BundlePackage> substitutes, Set<BundlePackage> privates) {
 		return nodes.computeIfAbsent(wiring, (w) -> new Node(w, provides, substitutes, privates));
@@ -270,14 +338,62 @@ public class ResolutionGraph implements Iterable<ResolutionGraph.Node>{
 		tail.serviceDeps.add(head);
 	}
 
+	/**
+	 * Records the layer parents of a wiring whose module was defined without its node,
+	 * for example from a replayed layer plan.  The parents are set on the node when
+	 * the sources are populated.
+	 * @param wiring the wiring of the module
+	 * @param parents the wirings of the modules whose layers are the parents
+	 */
+	public void setLayerParents(BundleWiring wiring, Set<BundleWiring> parents) {
+		plannedLayerParents.put(wiring, parents);
+	}
+
 	public void populateSources() {
+		plannedLayerParents.forEach((w, parents) -> {
+			Node n = nodes.get(w);
+			if (n != null) {
+				Set<Node> parentNodes = new HashSet<>();
+				for (BundleWiring parent : parents) {
+					Node parentNode = nodes.get(parent);
+					if (parentNode != null) {
+						parentNodes.add(parentNode);
+					}
+				}
+				n.setLayerParents(parentNodes);
+			}
+		});
+		plannedLayerParents.clear();
 		nodes.forEach((v, n) -> n.populateSources());
 		nodes.forEach((v, n) -> n.checkCycles());
 	}
 
+	/**
+	 * Reduces a set of parent nodes to a minimal set by removing the nodes
+	 * that are already reachable through the layer of another parent.
+	 * @param parents the parent nodes
+	 * @return the minimal set of parent nodes
+	 */
+	public Set<Node> reduceLayerParents(Set<Node> parents) {
+		if (parents.size() < 2) {
+			return parents;
+		}
+		Set<Node> reduced = new LinkedHashSet<>(parents);
+		for (Node parent : parents) {
+			if (reduced.contains(parent)) {
+				reduced.removeAll(parent.getLayerAncestors());
+			}
+		}
+		return reduced;
+	}
+
 	public Node getNode(BundleWiring v) {
 		return nodes.get(v);
 	}
+
+	public int size() {
+		return nodes.size();
+	}
 	
 	@Override
 	public Iterator<Node> iterator() {
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.namespace.HostNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+
+/**
+ * An index of the package and service meta-data of bundle revisions.
+ * The meta-data is computed once for each revision and the revisions
+ * are held weakly.
+ */
+public class RevisionIndex {
+	public static class Entry {
+		private final WeakReference<BundleWiring> wiring;
+		private final String moduleName;
+		private final Set<BundlePackage> exports;
+		private final Set<BundlePackage> substitutes;
+		private final Map<String, List<String>> provides;
+		private final Set<String> uses;
+
+		Entry(BundleWiring wiring, String moduleName, Set<BundlePackage> exports, Set<BundlePackage> substitutes, Map<String, List<String>> provides, Set<String> uses) {
+			this.wiring = new WeakReference<>(wiring);
+			this.moduleName = moduleName;
+			this.exports = Collections.unmodifiableSet(exports);
+			this.substitutes = Collections.unmodifiableSet(substitutes);
+			this.provides = Collections.unmodifiableMap(provides);
+			this.uses = Collections.unmodifiableSet(uses);
+		}
+
+		/**
+		 * The module name for the revision, munged to fit the JPMS rules for names.
+		 * @return the module name
+		 */
+		public String getModuleName() {
+			return moduleName;
+		}
+
+		/**
+		 * The exported packages with their friends.
+		 * @return the exported packages
+		 */
+		public Set<BundlePackage> getExports() {
+			return exports;
+		}
+
+		/**
+		 * The declared packages that are not exported because they are substituted by an import.
+		 * @return the substituted packages
+		 */
+		public Set<BundlePackage> getSubstitutes() {
+			return substitutes;
+		}
+
+		/**
+		 * The JPMS services provided mapped to their providers.
+		 * @return the provided services
+		 */
+		public Map<String, List<String>> getProvides() {
+			return provides;
+		}
+
+		/**
+		 * The JPMS services used.
+		 * @return the used services
+		 */
+		public Set<String> getUses() {
+			return uses;
+		}
+	}
+
+	private final Module systemModule;
+	private final Map<BundleRevision, Entry> entries = new WeakHashMap<>();
+	private WeakReference<BundleWiring> systemWiring = new WeakReference<>(null);
+	private final Map<BundleRevision, Set<BundlePackage>> systemFragmentExports = new WeakHashMap<>();
+
+	public RevisionIndex(Module systemModule) {
+		this.systemModule = systemModule;
+	}
+
+	/**
+	 * Returns the index entry for the revision of the specified wiring.
+	 * @param wiring the wiring of the revision
+	 * @return the index entry
+	 */
+	public synchronized Entry getEntry(BundleWiring wiring) {
+		BundleRevision revision = wiring.getRevision();
+		Entry entry = entries.get(revision);
+		// The exports depend on the substitutions of the wiring; a new wiring needs a new entry
+		if (entry == null || entry.wiring.get() != wiring) {
+			entry = createEntry(wiring);
+			entries.put(revision, entry);
+		}
+		return entry;
+	}
+
+	private Entry createEntry(BundleWiring wiring) {
+		BundleRevision revision = wiring.getRevision();
+		String moduleName;
+		if (revision.getBundle().getBundleId() == 0) {
+			moduleName = NodeFinder.mungeModuleName(Constants.SYSTEM_BUNDLE_SYMBOLICNAME);
+		} else {
+			String bsn = revision.getSymbolicName();
+			moduleName = bsn == null ? "" : NodeFinder.mungeModuleName(bsn);
+		}
+		Set<BundlePackage> exports = getExports(wiring);
+
+		Map<String, List<String>> provides = new LinkedHashMap<>();
+		for (Capability service : wiring.getCapabilities(JpmsServiceNamespace.JPMS_SERVICE_NAMESPACE)) {
+			@SuppressWarnings("unchecked")
+			List<String> providesWith = (List<String>) service.getAttributes().get(JpmsServiceNamespace.CAPABILITY_PROVIDES_WITH);
+			provides.put((String) service.getAttributes().get(JpmsServiceNamespace.JPMS_SERVICE_NAMESPACE), providesWith);
+		}
+		Set<String> uses = new LinkedHashSet<>();
+		for (Requirement use : revision.getRequirements(JpmsServiceNamespace.JPMS_SERVICE_NAMESPACE)) {
+			uses.add((String) use.getAttributes().get(JpmsServiceNamespace.JPMS_SERVICE_NAMESPACE));
+		}
+		return new Entry(wiring, moduleName, exports, getSubstitutes(wiring, exports), provides, uses);
+	}
+
+	private static Set<BundlePackage> getSubstitutes(BundleWiring w, Set<BundlePackage> exports) {
+		Set<BundlePackage> results = new HashSet<>();
+		for (BundleCapability export : w.getRevision().getDeclaredCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
+			results.add(BundlePackage.createSimplePackage((String) export.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE)));
+		}
+		for (BundleWire hostWire : w.getProvidedWires(HostNamespace.HOST_NAMESPACE)) {
+			for (BundleCapability export : hostWire.getRequirer().getDeclaredCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
+				results.add(BundlePackage.createSimplePackage((String) export.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE)));
+			}
+		}
+		results.removeAll(exports);
+		return results;
+	}
+
+	private Set<BundlePackage> getExports(BundleWiring wiring) {
+		if (LayerFactoryImpl.isFragment(wiring)) {
+			// assume this is for the system.bundle
+			BundleWiring hostWiring = wiring.getRequiredWires(HostNamespace.HOST_NAMESPACE).get(0).getProviderWiring();
+			Set<BundlePackage> results = getSystemFragmentExports(hostWiring).get(wiring.getRevision());
+			return results == null ? new HashSet<>() : new HashSet<>(results);
+		}
+		Set<BundlePackage> results = new HashSet<>();
+		for (BundleCapability export : wiring.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
+			results.add(BundlePackage.createExportPackage(export));
+		}
+		return results;
+	}
+
+	private Map<BundleRevision, Set<BundlePackage>> getSystemFragmentExports(BundleWiring hostWiring) {
+		Set<BundleRevision> fragments = new HashSet<>();
+		for (BundleWire hostWire : hostWiring.getProvidedWires(HostNamespace.HOST_NAMESPACE)) {
+			fragments.add(hostWire.getRequirer());
+		}
+		// Fragments can attach dynamically to the system.bundle wiring, so a fragment
+		// that is not known yet also causes the system.bundle exports to be indexed again.
+		if (systemWiring.get() != hostWiring || !systemFragmentExports.keySet().containsAll(fragments)) {
+			systemWiring = new WeakReference<>(hostWiring);
+			systemFragmentExports.clear();
+			Set<String> systemPackages = systemModule.getDescriptor().packages();
+			for (BundleCapability export : hostWiring.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE)) {
+				if (!systemPackages.contains(export.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE))) {
+					systemFragmentExports.computeIfAbsent(export.getRevision(), (r) -> new HashSet<>()).add(BundlePackage.createExportPackage(export));
+				}
+			}
+			for (BundleRevision fragment : fragments) {
+				systemFragmentExports.putIfAbsent(fragment, Collections.emptySet());
+			}
+		}
+		return systemFragmentExports;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.function.IntSupplier;
+
+import osgi.jpms.layer.LayerMetrics.Phase;
+
+/**
+ * A lock that records how long threads wait for it and how long they hold it.
+ * Only the outermost hold of a reentrant lock is recorded.
+ */
+class TimedLock implements Lock {
+	private final Lock lock;
+	private final IntSupplier holdCount;
+	private final LayerMetricsImpl metrics;
+	private final Phase wait;
+	private final Phase hold;
+	private final ThreadLocal<long[]> holdStart = ThreadLocal.withInitial(() -> new long[1]);
+
+	/**
+	 * @param lock the lock
+	 * @param holdCount the number of holds of the lock by the current thread
+	 */
+	TimedLock(Lock lock, IntSupplier holdCount, LayerMetricsImpl metrics, Phase wait, Phase hold) {
+		this.lock = lock;
+		this.holdCount = holdCount;
+		this.metrics = metrics;
+		this.wait = wait;
+		this.hold = hold;
+	}
+
+	private void acquired(long start) {
+		if (holdCount.getAsInt() == 1) {
+			long now = System.nanoTime();
+			metrics.recordNanos(wait, now - start);
+			holdStart.get()[0] = now;
+		}
+	}
+
+	@Override
+	public void lock() {
+		long start = System.nanoTime();
+		lock.lock();
+		acquired(start);
+	}
+
+	@Override
+	public void lockInterruptibly() throws InterruptedException {
+		long start = System.nanoTime();
+		lock.lockInterruptibly();
+		acquired(start);
+	}
+
+	@Override
+	public boolean tryLock() {
+		long start = System.nanoTime();
+		if (lock.tryLock()) {
+			acquired(start);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+		long start = System.nanoTime();
+		if (lock.tryLock(time, unit)) {
+			acquired(start);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void unlock() {
+		if (holdCount.getAsInt() == 1) {
+			metrics.record(hold, holdStart.get()[0]);
+		}
+		lock.unlock();
+	}
+
+	@Override
+	public Condition newCondition() {
+		return lock.newCondition();
+	}
+}
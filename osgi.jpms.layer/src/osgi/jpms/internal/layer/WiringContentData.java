@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.internal.layer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.namespace.HostNamespace;
+import org.osgi.framework.wiring.BundleWiring;
+
+import osgi.jpms.internal.layer.BundleWiringData.Fallback;
+
+/**
+ * The data computed for the content of a bundle wiring.  The content of a
+ * wiring is the content of the host generation plus the attached fragments.
+ * The data is stored with the host generation and is only valid as long as the
+ * same fragments are attached.  A fallback also depends on the providers of
+ * the wiring, so it is only valid as long as the wiring has the same providers.
+ * Instances are immutable.
+ */
+class WiringContentData {
+	// pairs of fragment id and last modified, ordered by id
+	private final long[] fragments;
+	// the packages with classes in the content; null if not computed yet
+	final Set<String> packages;
+	// the fallback used for the wiring; null if none
+	private final Fallback fallback;
+	// pairs of provider id and last modified when the fallback was used, ordered by id
+	private final long[] providers;
+
+	private WiringContentData(long[] fragments, Set<String> packages, Fallback fallback, long[] providers) {
+		this.fragments = fragments;
+		this.packages = packages;
+		this.fallback = fallback;
+		this.providers = providers;
+	}
+
+	static WiringContentData empty(BundleWiring wiring) {
+		return new WiringContentData(getFragments(wiring), null, null, new long[0]);
+	}
+
+	boolean isFor(BundleWiring wiring) {
+		return Arrays.equals(fragments, getFragments(wiring));
+	}
+
+	WiringContentData withPackages(Set<String> newPackages) {
+		return new WiringContentData(fragments, Collections.unmodifiableSet(newPackages), fallback, providers);
+	}
+
+	WiringContentData withFallback(Fallback newFallback, BundleWiring wiring) {
+		return new WiringContentData(fragments, packages, newFallback, newFallback == null ? new long[0] : getProviders(wiring));
+	}
+
+	Fallback getFallback(BundleWiring wiring) {
+		// the fallback may have been caused by a provider that is now different
+		return fallback != null && Arrays.equals(providers, getProviders(wiring)) ? fallback : null;
+	}
+
+	private static long[] getFragments(BundleWiring wiring) {
+		return getIdsAndLastModifieds(wiring.getProvidedWires(HostNamespace.HOST_NAMESPACE).stream()
+				.map((w) -> w.getRequirer().getBundle()));
+	}
+
+	private static long[] getProviders(BundleWiring wiring) {
+		return getIdsAndLastModifieds(wiring.getRequiredWires(null).stream()
+				.map((w) -> w.getProvider().getBundle())
+				.filter((b) -> !b.equals(wiring.getBundle())));
+	}
+
+	private static long[] getIdsAndLastModifieds(Stream<Bundle> bundles) {
+		long[][] pairs = bundles.distinct()
+				.map((b) -> new long[] {b.getBundleId(), b.getLastModified()})
+				.sorted((b1, b2) -> Long.compare(b1[0], b2[0]))
+				.toArray(long[][]::new);
+		long[] result = new long[pairs.length * 2];
+		for (int i = 0; i < pairs.length; i++) {
+			result[i * 2] = pairs[i][0];
+			result[i * 2 + 1] = pairs[i][1];
+		}
+		return result;
+	}
+
+	private static long[] readLongs(DataInput in) throws IOException {
+		long[] longs = new long[in.readInt()];
+		for (int i = 0; i < longs.length; i++) {
+			longs[i] = in.readLong();
+		}
+		return longs;
+	}
+
+	private static void writeLongs(DataOutput out, long[] longs) throws IOException {
+		out.writeInt(longs.length);
+		for (long l : longs) {
+			out.writeLong(l);
+		}
+	}
+
+	static WiringContentData read(DataInput in) throws IOException {
+		return read(in, true);
+	}
+
+	/**
+	 * Reads data written without the fallback providers.  The fallback of such
+	 * data cannot be checked against the wiring, so the data is only read to skip it.
+	 */
+	static void skipWithoutProviders(DataInput in) throws IOException {
+		read(in, false);
+	}
+
+	private static WiringContentData read(DataInput in, boolean withProviders) throws IOException {
+		long[] fragments = readLongs(in);
+		Set<String> packages = null;
+		if (in.readBoolean()) {
+			int numPackages = in.readInt();
+			packages = new HashSet<>(numPackages);
+			for (int i = 0; i < numPackages; i++) {
+				packages.add(in.readUTF());
+			}
+			packages = Collections.unmodifiableSet(packages);
+		}
+		Fallback fallback = in.readBoolean() ? Fallback.valueOf(in.readUTF()) : null;
+		long[] providers = withProviders ? readLongs(in) : new long[0];
+		return new WiringContentData(fragments, packages, fallback, providers);
+	}
+
+	void write(DataOutput out) throws IOException {
+		writeLongs(out, fragments);
+		out.writeBoolean(packages != null);
+		if (packages != null) {
+			out.writeInt(packages.size());
+			for (String p : packages) {
+				out.writeUTF(p);
+			}
+		}
+		out.writeBoolean(fallback != null);
+		if (fallback != null) {
+			out.writeUTF(fallback.name());
+		}
+		writeLongs(out, providers);
+	}
+}
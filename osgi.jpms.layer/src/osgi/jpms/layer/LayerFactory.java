@@ -19,8 +19,11 @@
 package osgi.jpms.layer;
 
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -37,9 +40,25 @@ public interface LayerFactory {
 	 * will contain modules that represent OSGi bundles resolved in an OSGi
 	 * Framework.
 	 */
-	public interface NamedLayer {
+	public interface NamedLayer extends AutoCloseable {
 		public enum Event {
-			INVALID;
+			INVALID,
+			/**
+			 * The layer factory created a replacement for the invalid named layer.
+			 * @see NamedLayer#getReplacement()
+			 */
+			REPLACED;
+		}
+
+		/**
+		 * A subscription of a consumer to the events of a named layer.
+		 */
+		public interface Subscription extends AutoCloseable {
+			/**
+			 * Stops delivering events to the consumer.
+			 */
+			@Override
+			void close();
 		}
 		/**
 		 * The layer that resolved JPMS modules.  The parent of this layer
@@ -67,9 +86,42 @@ public interface LayerFactory {
 		public boolean isValid();
 
 		/**
-		 * Adds a consumer for consuming events related to this named layer
+		 * Returns the named layer that replaced this invalid named layer.  When the
+		 * layer factory rebuilds invalid layers it creates a replacement with the same
+		 * module paths and roots resolved against the current bundles, and then sends
+		 * the {@link Event#REPLACED} event.  The replacement has its own consumers.
+		 * @return the replacement, or {@code null} if this layer has not been replaced
+		 */
+		public NamedLayer getReplacement();
+
+		/**
+		 * Adds a consumer for consuming events related to this named layer.
+		 * Events are delivered asynchronously by the layer factory.
+		 * @param consumer the consumer of the events
+		 * @see #subscribeEvents(Consumer)
 		 */
-		void consumeEvents(Consumer<Event> consumer);
+		default void consumeEvents(Consumer<Event> consumer) {
+			subscribeEvents(consumer);
+		}
+
+		/**
+		 * Adds a consumer for consuming events related to this named layer.
+		 * Events are delivered asynchronously by the layer factory.  The layer
+		 * factory keeps a named layer that has consumers until it is closed or
+		 * its consumers are removed, so the caller does not have to keep it.
+		 * @param consumer the consumer of the events
+		 * @return the subscription which can be closed to remove the consumer
+		 */
+		Subscription subscribeEvents(Consumer<Event> consumer);
+
+		/**
+		 * Releases this named layer.  A closed named layer is no longer valid
+		 * and no longer references its JPMS layer, which allows the class loaders
+		 * of the layer to be collected.  When layers are shared the JPMS layer is
+		 * only released once all the named layers sharing it are closed.
+		 */
+		@Override
+		void close();
 	}
 
 	/**
@@ -110,6 +162,63 @@ public interface LayerFactory {
 	 */
 	NamedLayer createLayerWithMappedLoaders(String name, Set<Path> paths, Set<String> roots, Function<String, ClassLoader> mappedLoaders);
 
+	/**
+	 * Creates a JPMS named layer for each of the specified layer specifications.
+	 * The bundle layers are brought up to date and the module paths are scanned
+	 * once for all the specifications.  Layers that do not depend on each other
+	 * are resolved and defined in parallel.  The parents of a specification are
+	 * created even if they are not included in the list.
+	 * @param specs The specifications of the layers to create.
+	 * @return the new named layers in the same order as the specifications
+	 * @throws IllegalArgumentException if the parents of the specifications form a cycle
+	 */
+	List<NamedLayer> createLayers(List<LayerSpec> specs);
+
+	/**
+	 * Asynchronously creates a JPMS named layer that uses one class loader.
+	 * Cancelling the returned future before the layer is created prevents the
+	 * layer from being created.
+	 * @param name The name to give the layer.  This name does not have to be unique.
+	 * @param paths The paths to look for JPMS module files.
+	 * @param roots The root modules to resolve in the new layer
+	 * @param parent The parent class loader to use.
+	 * @param executor The executor used to create the layer, or {@code null} to use
+	 * the executor of the layer factory.
+	 * @return a future that is completed with the new named layer
+	 * @see #createLayerWithOneLoader(String, Set, Set, ClassLoader)
+	 */
+	CompletableFuture<NamedLayer> createLayerWithOneLoaderAsync(String name, Set<Path> paths, Set<String> roots, ClassLoader parent, Executor executor);
+
+	/**
+	 * Asynchronously creates a JPMS named layer that uses a separate class loader for
+	 * each module in the layer.  Cancelling the returned future before the layer is
+	 * created prevents the layer from being created.
+	 * @param name The name to give the layer.  This name does not have to be unique.
+	 * @param paths The paths to look for JPMS module files.
+	 * @param roots The root modules to resolve in the new layer
+	 * @param parent The parent class loader to use.
+	 * @param executor The executor used to create the layer, or {@code null} to use
+	 * the executor of the layer factory.
+	 * @return a future that is completed with the new named layer
+	 * @see #createLayerWithManyLoaders(String, Set, Set, ClassLoader)
+	 */
+	CompletableFuture<NamedLayer> createLayerWithManyLoadersAsync(String name, Set<Path> paths, Set<String> roots, ClassLoader parent, Executor executor);
+
+	/**
+	 * Asynchronously creates a JPMS named layer that uses the provided mappedLoaders to
+	 * map a class loader to a module name.  Cancelling the returned future before the
+	 * layer is created prevents the layer from being created.
+	 * @param name The name to give the layer.  This name does not have to be unique.
+	 * @param paths The paths to look for JPMS module files.
+	 * @param roots The root modules to resolve in the new layer
+	 * @param mappedLoaders The function to map a module name to a class loader
+	 * @param executor The executor used to create the layer, or {@code null} to use
+	 * the executor of the layer factory.
+	 * @return a future that is completed with the new named layer
+	 * @see #createLayerWithMappedLoaders(String, Set, Set, Function)
+	 */
+	CompletableFuture<NamedLayer> createLayerWithMappedLoadersAsync(String name, Set<Path> paths, Set<String> roots, Function<String, ClassLoader> mappedLoaders, Executor executor);
+
 	/**
 	 * Returns a snapshot of the current modules associated with the bundles resolved in the framework.
 	 * @return
@@ -0,0 +1,352 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.layer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import osgi.jpms.layer.LayerFactory.NamedLayer;
+
+/**
+ * The layer metrics service reports how long the layer factory spends in each
+ * phase of building the bundle layers and named layers, how long the layers
+ * lock is waited for and held, and the size of the layers.  The same metrics
+ * are available from the {@code osgi.jpms.layer:type=LayerMetrics} MBean.
+ */
+public interface LayerMetrics {
+	/**
+	 * The upper bounds in milliseconds of the histogram buckets.  The last
+	 * bucket of a histogram counts the times above the last bound.  The list
+	 * cannot be modified.
+	 */
+	List<Long> HISTOGRAM_BOUNDS_MILLIS = Collections.unmodifiableList(Arrays.asList(1L, 10L, 100L, 1000L, 10000L));
+
+	public enum Phase {
+		CLEAN_UP,
+		CURRENT_WIRINGS,
+		ADD_TO_GRAPH,
+		ADD_WIRES,
+		POPULATE_SOURCES,
+		CLASS_LOADERS,
+		CREATE_MODULES,
+		ADD_READS_NEST,
+		/**
+		 * Replaying the layer plan saved by the previous start.
+		 */
+		REPLAY_PLAN,
+		/**
+		 * The total time to bring the bundle layers up to date.
+		 */
+		BUNDLE_LAYERS,
+		/**
+		 * The total time to create named layers.
+		 */
+		NAMED_LAYERS,
+		WRITE_LOCK_WAIT,
+		WRITE_LOCK_HOLD,
+		READ_LOCK_WAIT,
+		READ_LOCK_HOLD;
+	}
+
+	/**
+	 * The statistics of a phase.
+	 */
+	public interface PhaseStats {
+		/**
+		 * The number of times the phase was recorded.
+		 * @return the count
+		 */
+		long getCount();
+
+		/**
+		 * The total time spent in the phase.
+		 * @param unit the unit of the result
+		 * @return the total time
+		 */
+		long getTotal(TimeUnit unit);
+
+		/**
+		 * The longest time spent in the phase.
+		 * @param unit the unit of the result
+		 * @return the maximum time
+		 */
+		long getMax(TimeUnit unit);
+
+		/**
+		 * The time most recently spent in the phase.
+		 * @param unit the unit of the result
+		 * @return the last time
+		 */
+		long getLast(TimeUnit unit);
+
+		/**
+		 * The number of times recorded in each bucket.
+		 * @return the bucket counts
+		 * @see LayerMetrics#HISTOGRAM_BOUNDS_MILLIS
+		 */
+		long[] getHistogram();
+	}
+
+	/**
+	 * The work done to create the module of a bundle wiring.  Work shared by
+	 * the bundles of one layer is split evenly between them.
+	 */
+	public enum Cost {
+		/**
+		 * Scanning the bundle content for private packages.
+		 */
+		PRIVATES_SCAN,
+		/**
+		 * Building the module descriptor.
+		 */
+		DESCRIPTOR,
+		RESOLVE,
+		/**
+		 * Defining the modules, not including {@link #CLASS_LOADER}.
+		 */
+		DEFINE_MODULES,
+		/**
+		 * Getting the class loader of the bundle wiring.
+		 */
+		CLASS_LOADER;
+	}
+
+	/**
+	 * The cost of creating the module for the current wiring of a bundle.
+	 */
+	public interface BundleCost {
+		long getBundleId();
+
+		String getSymbolicName();
+
+		/**
+		 * The time spent on some work for the bundle.
+		 * @param cost the work
+		 * @param unit the unit of the result
+		 * @return the time
+		 */
+		long getTime(Cost cost, TimeUnit unit);
+
+		/**
+		 * The time spent on all the work for the bundle.
+		 * @param unit the unit of the result
+		 * @return the total time
+		 */
+		long getTotal(TimeUnit unit);
+
+		/**
+		 * The fallback used for the bundle module.
+		 * @return {@code FLAT} if the bundle could not be resolved in a hierarchy,
+		 * {@code UNNAMED} if the bundle uses the unnamed module of its class loader,
+		 * or {@code null} if there was no fallback
+		 */
+		String getFallback();
+	}
+
+	/**
+	 * Counts the classes defined by bundle class loaders.
+	 */
+	public interface DefineCounts {
+		/**
+		 * The number of classes defined.
+		 * @return the class count
+		 */
+		long getClasses();
+
+		/**
+		 * The number of class bytes given to the weaving hooks for the
+		 * defined classes.
+		 * @return the byte count
+		 */
+		long getBytes();
+
+		/**
+		 * The time from creating the module to defining its first class.
+		 * @param unit the unit of the result
+		 * @return the time to the first define, or -1 if no class is defined
+		 */
+		long getTimeToFirstDefine(TimeUnit unit);
+	}
+
+	/**
+	 * The define counts of a bundle module.
+	 */
+	public interface ModuleDefines extends DefineCounts {
+		long getBundleId();
+
+		/**
+		 * The module name, or the bundle symbolic name for bundles using an unnamed module.
+		 * @return the module name
+		 */
+		String getModuleName();
+	}
+
+	/**
+	 * The JPMS objects retained by a bundle module or a named layer.
+	 */
+	public interface Footprint {
+		/**
+		 * The module name of a bundle module, or the name of a named layer.
+		 * @return the name
+		 */
+		String getName();
+
+		boolean isNamedLayer();
+
+		/**
+		 * The number of configurations retained.  A configuration shared by
+		 * the bundle modules of one layer is counted for each of them.
+		 * @return the configuration count
+		 */
+		int getConfigurations();
+
+		/**
+		 * The number of layer controllers retained.
+		 * @return the controller count
+		 */
+		int getControllers();
+
+		/**
+		 * The number of modules read by the modules.
+		 * @return the read edge count
+		 */
+		long getReadEdges();
+	}
+
+	/**
+	 * The JPMS objects retained by the layer factory.
+	 */
+	public interface MemoryStats {
+		/**
+		 * The number of distinct configurations of the bundle modules and named layers.
+		 * @return the configuration count
+		 */
+		int getConfigurations();
+
+		/**
+		 * The number of configurations cached for resolving named layers.
+		 * @return the cached configuration count
+		 */
+		int getCachedConfigurations();
+
+		int getControllers();
+
+		long getReadEdges();
+
+		/**
+		 * The number of modules of bundle wirings no longer in use that have
+		 * not been garbage collected.
+		 * @return the retained module count
+		 */
+		int getRetainedModules();
+
+		/**
+		 * The number of class loaders of bundle wirings no longer in use that
+		 * have not been garbage collected.
+		 * @return the retained class loader count
+		 */
+		int getRetainedClassLoaders();
+
+		/**
+		 * The number of controllers kept for modules that are no longer bundle modules.
+		 * @return the stale controller count
+		 */
+		int getStaleControllers();
+
+		/**
+		 * The number of named layer registrations kept for modules that are no
+		 * longer bundle modules.
+		 * @return the stale registration count
+		 */
+		int getStaleNamedLayerEntries();
+	}
+
+	/**
+	 * Returns a snapshot of the statistics of a phase.
+	 * @param phase the phase
+	 * @return the statistics of the phase
+	 */
+	PhaseStats getPhaseStats(Phase phase);
+
+	/**
+	 * Returns the costs of the bundles with the most expensive modules first.
+	 * @param limit the maximum number of bundles to return
+	 * @return the bundle costs ranked by total time
+	 */
+	List<BundleCost> getBundleCosts(int limit);
+
+	/**
+	 * Returns the define counts of the bundle modules with the most classes first.
+	 * @param limit the maximum number of modules to return
+	 * @return the module define counts ranked by class count
+	 */
+	List<ModuleDefines> getModuleDefines(int limit);
+
+	/**
+	 * Returns the define counts of the bundle modules a named layer depends on.
+	 * The classes of the JPMS modules in the named layer itself are not counted
+	 * because they are not defined by bundle class loaders.  Each dependency is
+	 * counted once per named layer, so a bundle module that several named layers
+	 * depend on is included in the totals of each of them.
+	 * @param namedLayer the named layer
+	 * @return the sum of the define counts of the dependencies, the time to first
+	 * define is the shortest
+	 */
+	DefineCounts getDependencyDefineCounts(NamedLayer namedLayer);
+
+	/**
+	 * Returns the footprints of the bundle modules and named layers with the
+	 * most read edges first.
+	 * @param limit the maximum number of footprints to return
+	 * @return the footprints ranked by read edges
+	 */
+	List<Footprint> getFootprints(int limit);
+
+	/**
+	 * Returns the JPMS objects retained by the layer factory, including the modules
+	 * and class loaders of bundle wirings that are no longer in use.
+	 * @return the memory statistics
+	 */
+	MemoryStats getMemoryStats();
+
+	/**
+	 * The number of bundle wirings in the resolution graph.
+	 * @return the node count
+	 */
+	int getNodeCount();
+
+	/**
+	 * The number of modules that represent bundles.
+	 * @return the module count
+	 */
+	int getModuleCount();
+
+	/**
+	 * The number of named layers that are registered with the factory.
+	 * @return the named layer count
+	 */
+	int getNamedLayerCount();
+
+	/**
+	 * Clears the statistics of all phases.
+	 */
+	void reset();
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package osgi.jpms.layer;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * A specification of a named layer to create with
+ * {@link LayerFactory#createLayers(List)}.  A specification can have other
+ * specifications as parents, in which case the layers created for the parents
+ * are parents of the layer created for this specification.
+ */
+public final class LayerSpec {
+	/**
+	 * The type of class loaders used for the modules of a layer.
+	 */
+	public enum LoaderType {
+		/**
+		 * @see ModuleLayer#defineModulesWithOneLoader(java.lang.module.Configuration, List, ClassLoader)
+		 */
+		OneLoader,
+		/**
+		 * @see ModuleLayer#defineModulesWithManyLoaders(java.lang.module.Configuration, List, ClassLoader)
+		 */
+		ManyLoaders,
+		/**
+		 * @see ModuleLayer#defineModules(java.lang.module.Configuration, List, Function)
+		 */
+		MappedLoaders;
+	}
+
+	private final LoaderType loaderType;
+	private final String name;
+	private final Set<Path> paths;
+	private final Set<String> roots;
+	private final ClassLoader parent;
+	private final Function<String, ClassLoader> mappedLoaders;
+	private final List<LayerSpec> parents;
+
+	private LayerSpec(LoaderType loaderType, String name, Set<Path> paths, Set<String> roots, ClassLoader parent, Function<String, ClassLoader> mappedLoaders, List<LayerSpec> parents) {
+		this.loaderType = loaderType;
+		this.name = name;
+		this.paths = Collections.unmodifiableSet(new LinkedHashSet<>(paths));
+		this.roots = Collections.unmodifiableSet(new LinkedHashSet<>(roots));
+		this.parent = parent;
+		this.mappedLoaders = mappedLoaders;
+		this.parents = Collections.unmodifiableList(new ArrayList<>(parents));
+	}
+
+	/**
+	 * Specifies a layer that uses one class loader.
+	 * @param name The name to give the layer.  This name does not have to be unique.
+	 * @param paths The paths to look for JPMS module files.
+	 * @param roots The root modules to resolve in the new layer
+	 * @param parent The parent class loader to use.
+	 * @return the layer specification
+	 * @see LayerFactory#createLayerWithOneLoader(String, Set, Set, ClassLoader)
+	 */
+	public static LayerSpec withOneLoader(String name, Set<Path> paths, Set<String> roots, ClassLoader parent) {
+		return new LayerSpec(LoaderType.OneLoader, name, paths, roots, parent, null, Collections.emptyList());
+	}
+
+	/**
+	 * Specifies a layer that uses a separate class loader for each module in the layer.
+	 * @param name The name to give the layer.  This name does not have to be unique.
+	 * @param paths The paths to look for JPMS module files.
+	 * @param roots The root modules to resolve in the new layer
+	 * @param parent The parent class loader to use.
+	 * @return the layer specification
+	 * @see LayerFactory#createLayerWithManyLoaders(String, Set, Set, ClassLoader)
+	 */
+	public static LayerSpec withManyLoaders(String name, Set<Path> paths, Set<String> roots, ClassLoader parent) {
+		return new LayerSpec(LoaderType.ManyLoaders, name, paths, roots, parent, null, Collections.emptyList());
+	}
+
+	/**
+	 * Specifies a layer that uses the provided mappedLoaders to map a class loader to a module name.
+	 * @param name The name to give the layer.  This name does not have to be unique.
+	 * @param paths The paths to look for JPMS module files.
+	 * @param roots The root modules to resolve in the new layer
+	 * @param mappedLoaders The function to map a module name to a class loader
+	 * @return the layer specification
+	 * @see LayerFactory#createLayerWithMappedLoaders(String, Set, Set, Function)
+	 */
+	public static LayerSpec withMappedLoaders(String name, Set<Path> paths, Set<String> roots, Function<String, ClassLoader> mappedLoaders) {
+		return new LayerSpec(LoaderType.MappedLoaders, name, paths, roots, null, mappedLoaders, Collections.emptyList());
+	}
+
+	/**
+	 * Returns a copy of this specification that uses the layers of the specified
+	 * specifications as parents.
+	 * @param parentSpecs the parent specifications
+	 * @return a new layer specification
+	 */
+	public LayerSpec withParents(List<LayerSpec> parentSpecs) {
+		return new LayerSpec(loaderType, name, paths, roots, parent, mappedLoaders, parentSpecs);
+	}
+
+	public LoaderType getLoaderType() {
+		return loaderType;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Set<Path> getPaths() {
+		return paths;
+	}
+
+	public Set<String> getRoots() {
+		return roots;
+	}
+
+	public ClassLoader getParent() {
+		return parent;
+	}
+
+	public Function<String, ClassLoader> getMappedLoaders() {
+		return mappedLoaders;
+	}
+
+	public List<LayerSpec> getParents() {
+		return parents;
+	}
+
+	@Override
+	public String toString() {
+		return name + paths + roots;
+	}
+}